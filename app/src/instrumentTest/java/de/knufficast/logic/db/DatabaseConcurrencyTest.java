@@ -0,0 +1,99 @@
+/*******************************************************************************
+ * Copyright 2012 Crazywater
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package de.knufficast.logic.db;
+
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import android.test.AndroidTestCase;
+
+/**
+ * Checks that reads don't wait for a long write transaction on another
+ * thread, such as the merge of a refreshed feed.
+ * 
+ * @author crazywater
+ * 
+ */
+public class DatabaseConcurrencyTest extends AndroidTestCase {
+  private static final String DATABASE_NAME = "concurrency_test.db";
+  private static final long TIMEOUT_SECONDS = 5;
+  private static final String FEEDS = SQLiteHelper.TABLE_FEEDS;
+  private static final String URL = SQLiteHelper.C_FD_FEED_URL;
+
+  private Database db;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    getContext().deleteDatabase(DATABASE_NAME);
+    db = new Database(getContext(), DATABASE_NAME);
+    db.open();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    db.close();
+    getContext().deleteDatabase(DATABASE_NAME);
+    super.tearDown();
+  }
+
+  public void testReadDuringTransaction() throws Exception {
+    final long feedId = createFeed("http://example.com/committed");
+    final CountDownLatch inTransaction = new CountDownLatch(1);
+    final CountDownLatch readDone = new CountDownLatch(1);
+    final boolean[] timedOut = { false };
+    Thread writer = new Thread() {
+      @Override
+      public void run() {
+        db.runInTransaction(new Runnable() {
+          @Override
+          public void run() {
+            createFeed("http://example.com/uncommitted");
+            inTransaction.countDown();
+            // keep the transaction open until the other thread has read
+            try {
+              timedOut[0] = !readDone.await(TIMEOUT_SECONDS,
+                  TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+            }
+          }
+        });
+      }
+    };
+    writer.start();
+    assertTrue(inTransaction.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+    // a query, and a compiled statement that isn't cached yet
+    long[] ids = db.getIds(FEEDS);
+    String url = db.get(FEEDS, feedId, URL);
+    readDone.countDown();
+    writer.join();
+
+    assertFalse("The reads waited for the transaction", timedOut[0]);
+    // they saw the database as it was before the transaction
+    assertEquals(1, ids.length);
+    assertEquals(feedId, ids[0]);
+    assertEquals("http://example.com/committed", url);
+    assertEquals(2, db.getIds(FEEDS).length);
+  }
+
+  private long createFeed(String url) {
+    return db.create(FEEDS, Collections.singletonList(URL),
+        Collections.singletonList(url));
+  }
+}
@@ -0,0 +1,183 @@
+/*******************************************************************************
+ * Copyright 2012 Crazywater
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package de.knufficast.logic.db;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+
+/**
+ * Checks that every kind of query the app issues is answered through the
+ * primary key or an index, not by scanning or sorting a whole table, so that
+ * a lookup doesn't quietly become O(episodes) when queries or the schema
+ * change. The SQL comes from the same methods and constants as in the app.
+ * 
+ * @author crazywater
+ * 
+ */
+public class QueryPlanTest extends AndroidTestCase {
+  private static final String DATABASE_NAME = "query_plan_test.db";
+  private static final String EPISODES = SQLiteHelper.TABLE_EPISODES;
+  private static final String STATE = SQLiteHelper.TABLE_EPISODE_STATE;
+  private static final String FEEDS = SQLiteHelper.TABLE_FEEDS;
+  private static final String FEED_ID = SQLiteHelper.C_EP_FEED_ID;
+  private static final String FINGERPRINT = SQLiteHelper.C_EP_FINGERPRINT;
+
+  private SQLiteHelper helper;
+  private SQLiteDatabase db;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    getContext().deleteDatabase(DATABASE_NAME);
+    helper = new SQLiteHelper(getContext(), DATABASE_NAME);
+    db = helper.getWritableDatabase();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    helper.close();
+    getContext().deleteDatabase(DATABASE_NAME);
+    super.tearDown();
+  }
+
+  /**
+   * The compiled statements of the cache and of the write-behind flush.
+   */
+  public void testRowStatements() {
+    String[] tables = { EPISODES, STATE, FEEDS, SQLiteHelper.TABLE_QUEUE };
+    for (String table : tables) {
+      String[] columns = SQLiteHelper.getColumns(table);
+      assertIndexed(StatementCache.selectSql(table, columns[0]));
+      assertIndexed(StatementCache.updateSql(table, columns));
+      assertIndexed(StatementCache.insertOrReplaceSql(table));
+      assertIndexed(StatementCache.deleteSql(table));
+    }
+    assertIndexed(Database.blobsSql(SQLiteHelper.TABLE_EPISODE_NOTES,
+        ShowNotes.COLUMNS));
+    List<Long> ids = Arrays.asList(1L, 2L, 3L);
+    assertIndexed(Database.loadRowsSql(EPISODES, SQLiteHelper.EP_COLUMNS, ids));
+  }
+
+  /**
+   * The lookups of a feed's episodes and of a feed by URL.
+   */
+  public void testFeedQueries() {
+    // DBFeed.getEpisodes, feed paging in the episode details
+    assertIndexed(Database.querySql(EPISODES, FEED_ID));
+    // DBFeed.getEpisodePage, EpisodeRetention
+    assertIndexed(Database.queryPageSql(EPISODES, FEED_ID));
+    // XMLToDBWriter: is a feed subscribed, which episodes are known
+    assertIndexed(Database.querySql(FEEDS, SQLiteHelper.C_FD_FEED_URL));
+    assertIndexed(Database.queryLongsSql(EPISODES, FINGERPRINT, FEED_ID));
+    assertIndexed(Database.queryLongsSql(
+        SQLiteHelper.TABLE_DELETED_EPISODES, FINGERPRINT, FEED_ID));
+  }
+
+  /**
+   * The statements that change many rows at once.
+   */
+  public void testBulkWrites() {
+    // App.FeedDeleter, the foreign keys delete the state, notes and queue
+    // rows by their IDs
+    assertIndexed(Database.deleteWhereSql(EPISODES, DBFeed.WHERE_EPISODES));
+    // EpisodeRetention
+    assertIndexed(EpisodeRetention.REMEMBER_EXPIRED);
+    assertIndexed(Database.deleteWhereSql(EPISODES,
+        EpisodeRetention.WHERE_EXPIRED));
+    assertIndexed(EpisodeRetention.FORGET_OLDEST);
+    // Configuration
+    String[] downloadState = { SQLiteHelper.C_EP_DOWNLOAD_STATE };
+    assertIndexed(Database.updateWhereSql(STATE, downloadState,
+        Configuration.WHERE_DOWNLOAD_STATE));
+    String[] isNew = { SQLiteHelper.C_EP_IS_NEW };
+    assertIndexed(Database.updateWhereSql(STATE, isNew,
+        Configuration.whereInFeeds("1,2")));
+  }
+
+  /**
+   * The merge of a parsed feed. Moving the episodes out of staging scans only
+   * the staging table, which just has the feeds being parsed.
+   */
+  public void testFeedMerge() {
+    assertIndexed(XMLToDBWriter.MAX_ID);
+    assertIndexed(XMLToDBWriter.ADD_STATES);
+    assertIndexed(XMLToDBWriter.NEW_IDS);
+    assertIndexed(XMLToDBWriter.FORGET_DELETED);
+    assertNotSorted(XMLToDBWriter.MOVE_EPISODES);
+    assertNotSorted(XMLToDBWriter.MOVE_NOTES);
+    assertNotSorted(XMLToDBWriter.CLEAR);
+  }
+
+  /**
+   * The lists that read a whole table on purpose.
+   */
+  public void testWholeTables() {
+    // Configuration.getAllFeeds
+    assertNotSorted(Database.idsSql(FEEDS, Database.NEWEST_FIRST));
+    // Queue.load
+    assertNotSorted(Database.idsSql(SQLiteHelper.TABLE_QUEUE, Queue.POSITION));
+  }
+
+  /**
+   * Fails if the statement scans or sorts a table.
+   */
+  private void assertIndexed(String sql) {
+    for (String step : explain(sql)) {
+      assertFalse("Query without index: " + sql + " (" + step + ")",
+          step.startsWith("SCAN") || step.contains("TEMP B-TREE"));
+    }
+  }
+
+  /**
+   * Fails if the statement sorts a table.
+   */
+  private void assertNotSorted(String sql) {
+    for (String step : explain(sql)) {
+      assertFalse("Query sorts a table: " + sql + " (" + step + ")",
+          step.contains("TEMP B-TREE"));
+    }
+  }
+
+  /**
+   * Returns the steps of the query plan, e.g. "SEARCH TABLE episodes USING
+   * INTEGER PRIMARY KEY (rowid=?)". Every argument is bound to 0.
+   */
+  private List<String> explain(String sql) {
+    int argCount = 0;
+    for (int i = 0; i < sql.length(); i++) {
+      if (sql.charAt(i) == '?') {
+        argCount++;
+      }
+    }
+    String[] args = new String[argCount];
+    Arrays.fill(args, "0");
+    List<String> steps = new ArrayList<String>();
+    Cursor cursor = db.rawQuery("EXPLAIN QUERY PLAN " + sql, args);
+    int detail = cursor.getColumnIndex("detail");
+    cursor.moveToFirst();
+    while (!cursor.isAfterLast()) {
+      steps.add(cursor.getString(detail));
+      cursor.moveToNext();
+    }
+    cursor.close();
+    return steps;
+  }
+}
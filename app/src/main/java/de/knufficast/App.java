@@ -15,22 +15,37 @@
  ******************************************************************************/
 package de.knufficast;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.app.ActivityManager;
 import android.app.AlarmManager;
 import android.app.Application;
+import android.content.ComponentCallbacks2;
 import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.StrictMode;
 import android.preference.PreferenceManager;
+import android.util.Log;
 import de.knufficast.events.EventBus;
+import de.knufficast.events.FeedRemovedEvent;
 import de.knufficast.flattr.FlattrQueue;
 import de.knufficast.logic.ImageCache;
+import de.knufficast.logic.db.CacheStats;
 import de.knufficast.logic.db.Configuration;
 import de.knufficast.logic.db.DBEpisode;
+import de.knufficast.logic.db.DBEpisode.DownloadState;
 import de.knufficast.logic.db.DBFeed;
 import de.knufficast.logic.db.Database;
 import de.knufficast.logic.db.Queue;
 import de.knufficast.logic.db.SQLiteHelper;
 import de.knufficast.player.QueuePlayer;
+import de.knufficast.util.Callback;
+import de.knufficast.util.Function;
 import de.knufficast.util.LockManager;
 import de.knufficast.util.file.CacheFileUtil;
+import de.knufficast.util.file.ExternalFileUtil;
 import de.knufficast.watchers.ConfigurationSaver;
 import de.knufficast.watchers.DownloadRemover;
 import de.knufficast.watchers.DownloadWatcher;
@@ -59,8 +74,11 @@ public class App extends Application {
   private final FlattrWatcher flattrWatcher = new FlattrWatcher(this, eventBus);
   private final FlattrQueue flattrQueue = new FlattrQueue();
   private final Database database = new Database(this);
+  private final Handler handler = new Handler();
 
   private final String KEY_QUEUE_PREF = "queue";
+  // the database read cache may use this part of the heap, e.g. 1MB of 32MB
+  private static final int CACHE_SHARE = 32;
 
   private QueuePlayer queuePlayer;
   private static App instance;
@@ -73,7 +91,18 @@ public class App extends Application {
     super.onCreate();
     instance = this;
     database.open();
+    ActivityManager activityManager = (ActivityManager) getSystemService(
+        ACTIVITY_SERVICE);
+    database.setCacheBudget(activityManager.getMemoryClass() * 1024L * 1024
+        / CACHE_SHARE);
     load();
+    // before the watchers look at the download states
+    configuration.sanitize();
+    if (BuildConfig.DEBUG) {
+      // log database reads on the UI thread, see Database#readAsync
+      StrictMode.setThreadPolicy(new StrictMode.ThreadPolicy.Builder()
+          .detectCustomSlowCalls().penaltyLog().build());
+    }
     queuePlayer = new QueuePlayer(getQueue(), this, eventBus);
     initUpdater();
     imageCache.init();
@@ -82,7 +111,6 @@ public class App extends Application {
     downloadWatcher.register();
     downloadRemover.register();
     flattrWatcher.register();
-    configuration.sanitize();
   }
 
   /**
@@ -151,13 +179,40 @@ public class App extends Application {
   }
 
   /**
-   * Saves the entire application state to storage.
+   * Saves the entire application state to storage. Database writes are left
+   * to the write-behind thread, which batches them (see
+   * {@link Database#flush}); they are flushed explicitly when the app goes to
+   * the background and when the {@link UpdaterService} is done.
    */
   public synchronized void save() {
-    saveQueue();
     imageCache.save();
   }
 
+  /**
+   * Once we're in the background, we might be killed at any time, so pending
+   * database writes shouldn't wait any longer.
+   */
+  @Override
+  public void onTrimMemory(int level) {
+    super.onTrimMemory(level);
+    if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+      database.flushAsync();
+    }
+    if (BuildConfig.DEBUG) {
+      logDatabaseStats();
+    }
+  }
+
+  /**
+   * Logs how well the database caches reads and batches writes.
+   */
+  private void logDatabaseStats() {
+    Log.d("App", "Writes: " + database.getFlushStats());
+    for (CacheStats stats : database.getCacheStats()) {
+      Log.d("App", "Reads: " + stats);
+    }
+  }
+
   /**
    * Loads the entire application state.
    */
@@ -165,27 +220,90 @@ public class App extends Application {
     loadQueue();
   }
 
-  public void deleteFeed(DBFeed feed) {
-    QueueDownloader queueDownloader = QueueDownloader.get();
-    for (DBEpisode ep : feed.getEpisodes()) {
-      if (queue.contains(ep)) {
-        queue.remove(ep);
+  /**
+   * Unsubscribes from a feed. Its episodes leave the queue and stop downloading
+   * right away, everything else happens in the background. Fires a
+   * {@link FeedRemovedEvent} when the feed is gone.
+   */
+  public void deleteFeed(final DBFeed feed) {
+    database.readAsync(new Function<Database, List<DBEpisode>>() {
+      @Override
+      public List<DBEpisode> call(Database db) {
+        return feed.getEpisodes();
       }
-      queueDownloader.deleteDownload(ep);
-    }
-    getDB().delete(SQLiteHelper.TABLE_FEEDS, feed.getId());
+    }, new Callback<List<DBEpisode>>() {
+      @Override
+      public void call(List<DBEpisode> episodes) {
+        queue.removeAll(episodes);
+        QueueDownloader queueDownloader = QueueDownloader.get();
+        for (DBEpisode ep : episodes) {
+          queueDownloader.cancelDownload(ep);
+        }
+        new FeedDeleter(feed, episodes).start();
+      }
+    });
   }
 
-  private void saveQueue() {
+  private void loadQueue() {
     SharedPreferences prefs = PreferenceManager
         .getDefaultSharedPreferences(this);
-    prefs.edit().putString(KEY_QUEUE_PREF, queue.toString()).commit();
+    if (prefs.contains(KEY_QUEUE_PREF)) {
+      // the queue used to be stored in the preferences, move it to the database
+      queue.importString(prefs.getString(KEY_QUEUE_PREF, ""));
+      database.flush();
+      prefs.edit().remove(KEY_QUEUE_PREF).commit();
+    } else {
+      queue.load();
+    }
   }
 
-  private void loadQueue() {
-    SharedPreferences prefs = PreferenceManager
-        .getDefaultSharedPreferences(this);
-    String queueStr = prefs.getString(KEY_QUEUE_PREF, "");
-    queue.fromString(queueStr);
+  /**
+   * Deletes a feed with all of its episodes and their downloads.
+   */
+  private class FeedDeleter extends Thread {
+    private final DBFeed feed;
+    private final List<DBEpisode> episodes;
+
+    public FeedDeleter(DBFeed feed, List<DBEpisode> episodes) {
+      super("FeedDeleter");
+      this.feed = feed;
+      this.episodes = episodes;
+    }
+
+    @Override
+    public void run() {
+      List<Long> ids = new ArrayList<Long>(episodes.size());
+      for (DBEpisode ep : episodes) {
+        ids.add(ep.getId());
+      }
+      database.loadRows(SQLiteHelper.TABLE_EPISODE_STATE, ids);
+      ExternalFileUtil fileUtil = new ExternalFileUtil(App.this);
+      List<File> files = new ArrayList<File>();
+      for (DBEpisode ep : episodes) {
+        if (ep.getDownloadState() != DownloadState.NONE) {
+          files.add(fileUtil.resolveFile(ep.getFileLocation()));
+        }
+      }
+      try {
+        feed.deleteEpisodes();
+      } catch (IllegalStateException e) {
+        // nothing is deleted, the feed stays subscribed
+        Log.e("FeedDeleter", "Could not delete " + feed.getFeedUrl(), e);
+        return;
+      }
+      database.delete(SQLiteHelper.TABLE_FEEDS, feed.getId());
+      DBEpisode.evict(database, ids);
+      for (File file : files) {
+        if (file.exists() && !file.delete()) {
+          Log.e("FeedDeleter", "Could not delete " + file);
+        }
+      }
+      handler.post(new Runnable() {
+        @Override
+        public void run() {
+          eventBus.fireEvent(new FeedRemovedEvent(feed));
+        }
+      });
+    }
   }
 }
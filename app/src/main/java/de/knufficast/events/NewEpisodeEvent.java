@@ -16,11 +16,22 @@
 package de.knufficast.events;
 
 /**
- * An event that is fired when a new episode is added to a feed.
+ * An event that is fired when new episodes are added to feeds.
  * 
  * @author crazywater
  * 
  */
 public class NewEpisodeEvent implements Event {
+  private final long[] episodeIds;
 
+  public NewEpisodeEvent(long[] episodeIds) {
+    this.episodeIds = episodeIds;
+  }
+
+  /**
+   * The IDs of the episodes that have been added.
+   */
+  public long[] getEpisodeIds() {
+    return episodeIds;
+  }
 }
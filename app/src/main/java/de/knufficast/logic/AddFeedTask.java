@@ -18,7 +18,6 @@ package de.knufficast.logic;
 import java.io.IOException;
 import java.net.HttpURLConnection;
 import java.net.URL;
-import java.util.List;
 
 import org.xmlpull.v1.XmlPullParserException;
 
@@ -26,7 +25,6 @@ import android.os.AsyncTask;
 import android.util.Log;
 import de.knufficast.logic.db.Configuration;
 import de.knufficast.logic.db.XMLToDBWriter;
-import de.knufficast.logic.xml.XMLFeed;
 
 /**
  * A background task that downloads RSS feeds, parses them and adds them to the
@@ -66,11 +64,9 @@ public class AddFeedTask extends AsyncTask<String, Void, Void> {
         if (isCancelled()) {
           return null;
         }
-        List<XMLFeed> feeds = new FeedDownloader().getFeeds(con);
-        if (isCancelled()) {
-          return null;
-        }
-        new XMLToDBWriter().addFeeds(feeds);
+        XMLToDBWriter writer = new XMLToDBWriter(false);
+        new FeedDownloader().getFeeds(con, writer);
+        writer.finish();
       } catch (IOException e) {
         error = e.getMessage();
       } catch (XmlPullParserException e) {
@@ -16,11 +16,13 @@
 package de.knufficast.logic;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.util.List;
 
 import org.xmlpull.v1.XmlPullParserException;
 
+import de.knufficast.logic.xml.EpisodeSink;
 import de.knufficast.logic.xml.XMLFeed;
 
 /**
@@ -31,15 +33,25 @@ import de.knufficast.logic.xml.XMLFeed;
  * 
  */
 public class FeedDownloader {
-  public List<XMLFeed> getFeeds(HttpURLConnection connection)
-      throws IOException,
-      XmlPullParserException {
-
+  /**
+   * Downloads and parses the feeds, handing each episode to the sink while
+   * the download is still going on. Stops downloading when the sink doesn't
+   * need more episodes.
+   * 
+   * @return the feeds, without their episodes
+   */
+  public List<XMLFeed> getFeeds(HttpURLConnection connection, EpisodeSink sink)
+      throws IOException, XmlPullParserException {
     long timestamp = connection.getDate();
     String eTag = connection.getHeaderField("ETag");
     RssParser parser = new RssParser();
-    parser.parse(connection.getInputStream(), connection.getURL()
-        .toString(), timestamp, eTag);
+    InputStream in = connection.getInputStream();
+    try {
+      parser.parse(in, connection.getURL().toString(), timestamp, eTag, sink);
+    } finally {
+      // the sink may have stopped the parser before the end of the feed
+      in.close();
+    }
     return parser.getFeeds();
   }
 }
@@ -19,16 +19,18 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
 
 import org.xmlpull.v1.XmlPullParserException;
 
 import de.knufficast.logic.db.DBFeed;
+import de.knufficast.logic.xml.EpisodeSink;
 import de.knufficast.logic.xml.XMLEpisode;
 import de.knufficast.logic.xml.XMLFeed;
 
 /**
- * A parser for XML podcast feeds. Produces {@link DBFeed} objects.
+ * A parser for XML podcast feeds. Produces {@link DBFeed} objects. Either
+ * collects the episodes in the feeds, or hands each one to an
+ * {@link EpisodeSink} as soon as it is parsed.
  * 
  * @author crazywater
  * 
@@ -38,118 +40,181 @@ public class RssParser extends XmlParser {
   private String feedUrl;
   private long timestamp;
   private String eTag;
+  private EpisodeSink sink;
+  private int maxNotesLength = DEFAULT_MAX_NOTES_LENGTH;
 
   private XMLFeed feed;
   private XMLEpisode episode;
 
-  private static final String FEED_TAG = "channel";
-  private static final String ENCLOSURE_TAG = "enclosure";
-  private static final String DESCRIPTION_TAG = "description";
-  private static final String TITLE_TAG = "title";
-  private static final String GUID_TAG = "guid";
-  private static final String EPISODE_TAG = "item";
-  private static final String LINK_TAG = "link";
-  private static final String IMAGE_TAG = "image";
-  private static final String CONTENT_TAG = "encoded";
+  // tag IDs, in the order of TAGS
+  private static final int FEED_TAG = 1;
+  private static final int ENCLOSURE_TAG = 2;
+  private static final int DESCRIPTION_TAG = 3;
+  private static final int TITLE_TAG = 4;
+  private static final int GUID_TAG = 5;
+  private static final int EPISODE_TAG = 6;
+  private static final int LINK_TAG = 7;
+  private static final int IMAGE_TAG = 8;
+  private static final int CONTENT_TAG = 9;
+  private static final String[] TAGS = { "channel", "enclosure",
+      "description", "title", "guid", "item", "link", "image", "encoded" };
+  // characters kept of a description or content, the show notes are cut there
+  private static final int DEFAULT_MAX_NOTES_LENGTH = 64 * 1024;
+  // characters kept of the other texts, which are never that long in practice
+  private static final int MAX_TEXT_LENGTH = 4 * 1024;
   private static final String LOCATION_ATTRIBUTE = "href";
   private static final String URL_ATTRIBUTE = "url";
   private static final String REL_ATTRIBUTE = "rel";
 
   public void parse(InputStream xml, String feedUrl, long timestamp, String eTag)
       throws XmlPullParserException, IOException {
+    parse(xml, feedUrl, timestamp, eTag, null);
+  }
+
+  /**
+   * Parses the feeds, handing their episodes to the sink instead of keeping
+   * them. Only one episode is in memory at a time. The sink is not called for
+   * the rest of a feed that has an error, and can stop the parsing (see
+   * {@link EpisodeSink#addEpisode}).
+   */
+  public void parse(InputStream xml, String feedUrl, long timestamp,
+      String eTag, EpisodeSink sink) throws XmlPullParserException,
+      IOException {
     feeds = new ArrayList<XMLFeed>();
     this.feedUrl = feedUrl;
     this.timestamp = timestamp;
     this.eTag = eTag;
+    this.sink = sink;
     this.parseFrom(xml);
   }
 
   /**
    * Returns the parsed feeds from a previous call to {@link #parseFrom} or null
-   * if no call was made.
+   * if no call was made. When parsing into a sink, the feeds have no episodes.
    */
   public List<XMLFeed> getFeeds() {
     return feeds;
   }
 
+  public RssParser() {
+    super(TAGS);
+  }
+
   /**
-   * Called upon parsing an opening tag.
-   * 
-   * @param tag
-   *          the tag name
-   * @param attributes
-   *          the attributes of the tag (name->value) mapping
+   * Sets how many characters of the description and content of feeds and
+   * episodes are kept. Longer ones are cut off while parsing.
    */
-  protected void openTag(String tag, Map<String, String> attributes) {
-    if (tag.equals(FEED_TAG)) {
+  public void setMaxNotesLength(int maxNotesLength) {
+    this.maxNotesLength = maxNotesLength;
+  }
+
+  @Override
+  protected void openTag(int tag) {
+    switch (tag) {
+    case FEED_TAG:
       feed = new XMLFeed();
       feed.setDataUrl(feedUrl);
       feed.setLastUpdated(timestamp);
       feed.setETag(eTag);
       feed.setEncoding(getEncoding());
-    } else if (tag.equals(EPISODE_TAG)) {
+      if (sink != null) {
+        sink.startFeed(feed);
+      }
+      break;
+    case EPISODE_TAG:
       episode = new XMLEpisode();
-    } else if (tag.equals(IMAGE_TAG)) {
-      String location = attributes.get(LOCATION_ATTRIBUTE);
+      break;
+    case IMAGE_TAG:
+      String location = getAttribute(LOCATION_ATTRIBUTE);
       if (location != null) {
-        if (FEED_TAG.equals(getParentTag())) {
+        if (getParentTag() == FEED_TAG) {
           feed.setImgUrl(location);
-        } else if (EPISODE_TAG.equals(getParentTag())) {
+        } else if (getParentTag() == EPISODE_TAG) {
           episode.setImgUrl(location);
         }
       }
-    } else if (tag.equals(ENCLOSURE_TAG) && EPISODE_TAG.equals(getParentTag())) {
-      episode.setDataUrl(attributes.get(URL_ATTRIBUTE));
-    } else if (tag.equals(LINK_TAG) && EPISODE_TAG.equals(getParentTag())) {
-      if ("payment".equals(attributes.get(REL_ATTRIBUTE))) {
-        String paymentLocation = attributes.get(LOCATION_ATTRIBUTE);
+      break;
+    case ENCLOSURE_TAG:
+      if (getParentTag() == EPISODE_TAG) {
+        episode.setDataUrl(getAttribute(URL_ATTRIBUTE));
+      }
+      break;
+    case LINK_TAG:
+      if (getParentTag() == EPISODE_TAG
+          && "payment".equals(getAttribute(REL_ATTRIBUTE))) {
+        String paymentLocation = getAttribute(LOCATION_ATTRIBUTE);
         if (paymentLocation != null && paymentLocation.contains("flattr")) {
           episode.setFlattrUrl(paymentLocation);
         }
       }
+      break;
     }
   }
 
-  /**
-   * Called upon parsing a closing tag
-   * 
-   * @param tag
-   *          the tag name
-   */
-  protected void closeTag(String tag) {
-    if (tag.equals(FEED_TAG)) {
+  @Override
+  protected void closeTag(int tag) {
+    if (tag == FEED_TAG) {
       feeds.add(feed);
+      if (sink != null) {
+        sink.endFeed(feed);
+      }
       feed = null;
-    }
-    if (tag.equals(EPISODE_TAG)) {
-      feed.addEpisode(episode);
+    } else if (tag == EPISODE_TAG) {
+      if (sink == null) {
+        feed.addEpisode(episode);
+      } else if (!sink.addEpisode(feed, episode)) {
+        // the sink doesn't need the rest of the feed
+        feeds.add(feed);
+        sink.endFeed(feed);
+        feed = null;
+        stop();
+      }
       episode = null;
     }
   }
 
-  /**
-   * Called upon parsing text between an opening and a closing tag. Parent tags
-   * can be found in {@link #currentTags}, but include the current tag at the
-   * top.
-   * 
-   * @param text
-   *          the text that is encountered
-   */
+  @Override
+  protected int getMaxTextLength(int tag) {
+    switch (tag) {
+    case DESCRIPTION_TAG:
+    case CONTENT_TAG:
+      return maxNotesLength;
+    case TITLE_TAG:
+    case GUID_TAG:
+      return MAX_TEXT_LENGTH;
+    default:
+      // not needed
+      return 0;
+    }
+  }
+
+  @Override
   protected void tagText(String text) {
-    String tag = getCurrentTag();
-    if (tag.equals(TITLE_TAG) && EPISODE_TAG.equals(getParentTag())) {
-      episode.setTitle(text);
-    } else if (tag.equals(GUID_TAG) && EPISODE_TAG.equals(getParentTag())) {
-      episode.setGuid(text);
-    } else if (tag.equals(CONTENT_TAG) && EPISODE_TAG.equals(getParentTag())) {
-      episode.setContent(text);
-    } else if (tag.equals(TITLE_TAG) && FEED_TAG.equals(getParentTag())) {
-      feed.setTitle(text);
-    } else if (tag.equals(DESCRIPTION_TAG)
-        && EPISODE_TAG.equals(getParentTag())) {
-      episode.setDescription(text);
-    } else if (tag.equals(DESCRIPTION_TAG) && FEED_TAG.equals(getParentTag())) {
-      feed.setDescription(text);
+    int parent = getParentTag();
+    if (parent == EPISODE_TAG) {
+      switch (getCurrentTag()) {
+      case TITLE_TAG:
+        episode.setTitle(text);
+        break;
+      case GUID_TAG:
+        episode.setGuid(text);
+        break;
+      case CONTENT_TAG:
+        episode.setContent(text);
+        break;
+      case DESCRIPTION_TAG:
+        episode.setDescription(text);
+        break;
+      }
+    } else if (parent == FEED_TAG) {
+      switch (getCurrentTag()) {
+      case TITLE_TAG:
+        feed.setTitle(text);
+        break;
+      case DESCRIPTION_TAG:
+        feed.setDescription(text);
+        break;
+      }
     }
   }
 }
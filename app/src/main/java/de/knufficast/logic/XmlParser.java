@@ -20,29 +20,64 @@ import java.io.InputStream;
 import java.io.Reader;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.Stack;
 
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 import org.xmlpull.v1.XmlPullParserFactory;
 
+/**
+ * A base class for parsers that only look at a few known tags. Tags are
+ * handed to the subclass as integer IDs, so that it can switch on them, and
+ * attributes are read from the underlying pull parser only when asked for,
+ * instead of being copied into a map for every tag.
+ * 
+ * The text of a tag is cut to a limit per tag (see {@link #getMaxTextLength})
+ * before it is passed to {@link #tagText}, so that a huge description isn't
+ * kept in full.
+ * 
+ * @author crazywater
+ * 
+ */
 public abstract class XmlParser {
+  /**
+   * The ID of all tags that the subclass doesn't know.
+   */
+  protected static final int OTHER_TAG = 0;
+  private static final int INITIAL_DEPTH = 16;
+
+  private final String[] tagNames;
+  // lowercase name -> ID
+  private final Map<String, Integer> tagIds = new HashMap<String, Integer>();
+
   private String encoding;
-  private Stack<String> currentTags;
+  private XmlPullParser xpp;
+  // the IDs and names of the open tags, innermost at depth - 1
+  private int[] tagStack = new int[INITIAL_DEPTH];
+  private String[] nameStack = new String[INITIAL_DEPTH];
+  private int depth;
+  private boolean stopped;
+  private final int[] textBounds = new int[2];
 
   /**
-   * Parses an XML input. Resulting feeds can be retrieved with
-   * {@link #getFeeds}.
+   * @param tags
+   *          the lowercase names of the tags the subclass wants to tell apart.
+   *          The tag at index i gets the ID i + 1, all others are
+   *          {@link #OTHER_TAG}.
+   */
+  protected XmlParser(String... tags) {
+    tagNames = new String[tags.length + 1];
+    for (int i = 0; i < tags.length; i++) {
+      tagNames[i + 1] = tags[i].intern();
+      tagIds.put(tagNames[i + 1], i + 1);
+    }
+  }
+
+  /**
+   * Parses an XML input, calling {@link #openTag}, {@link #closeTag} and
+   * {@link #tagText} on the way.
    * 
    * @param xml
    *          the input stream of XML data
-   * @param feedUrl
-   *          the URL to set as feedUrl (used for identification purposes)
-   * @param timestamp
-   *          the timestamp when the feed was downloaded
-   * @param eTag
-   *          the eTag header the server delivers. Can be used for caching
-   *          purposes, can also be null.
    * @throws XmlPullParserException
    *           for malformed XML
    * @throws IOException
@@ -68,71 +103,172 @@ public abstract class XmlParser {
   
   private void doParse(XmlPullParser xpp) throws XmlPullParserException,
       IOException {
-    currentTags = new Stack<String>();
+    this.xpp = xpp;
+    depth = 0;
+    stopped = false;
     int eventType = xpp.getEventType();
     try {
       encoding = xpp.getInputEncoding();
-      while (eventType != XmlPullParser.END_DOCUMENT) {
+      while (eventType != XmlPullParser.END_DOCUMENT && !stopped) {
         if (eventType == XmlPullParser.START_TAG) {
-          Map<String, String> attributes = new HashMap<String, String>();
-          for (int i = 0; i < xpp.getAttributeCount(); i++) {
-            attributes.put(xpp.getAttributeName(i).toLowerCase(),
-                xpp.getAttributeValue(i));
-          }
-          String tagName = xpp.getName().toLowerCase();
-          onOpenTag(tagName);
-          openTag(tagName, attributes);
+          String name = xpp.getName();
+          int tag = idOf(name);
+          push(tag, name);
+          openTag(tag);
         } else if (eventType == XmlPullParser.END_TAG) {
-          String expected = currentTags.peek();
-          String got = xpp.getName().toLowerCase();
+          String expected = nameStack[depth - 1];
+          String got = xpp.getName();
           if (!expected.equals(got)) {
             throw new XmlPullParserException("Malformed XML: Closing tag "
                 + got + ", expected closing " + expected);
           }
-          onCloseTag(got);
-          closeTag(got);
+          int tag = tagStack[--depth];
+          nameStack[depth] = null;
+          closeTag(tag);
         } else if (eventType == XmlPullParser.TEXT) {
-          onTagText(xpp.getText());
-          tagText(xpp.getText());
+          passText();
         }
         eventType = xpp.next();
       }
     } catch (NullPointerException e) {
       e.printStackTrace();
       throw new XmlPullParserException("Malformed XML: " + e.getMessage());
+    } finally {
+      this.xpp = null;
     }
   }
 
+  /**
+   * Stops parsing after the current tag or text, without reading the rest of
+   * the input.
+   */
+  protected void stop() {
+    stopped = true;
+  }
+
   protected String getEncoding() {
     return encoding;
   }
 
-  protected abstract void openTag(String tag, Map<String, String> attributes);
+  /**
+   * Called upon parsing an opening tag. Its attributes can be read with
+   * {@link #getAttribute} until the next event.
+   * 
+   * @param tag
+   *          the ID of the tag
+   */
+  protected abstract void openTag(int tag);
 
-  protected abstract void closeTag(String tag);
+  /**
+   * Called upon parsing a closing tag.
+   * 
+   * @param tag
+   *          the ID of the tag
+   */
+  protected abstract void closeTag(int tag);
 
+  /**
+   * Called upon parsing text between two tags, with at most
+   * {@link #getMaxTextLength} characters of it.
+   */
   protected abstract void tagText(String text);
 
-  private void onOpenTag(String tag) {
-    currentTags.push(tag);
+  /**
+   * Returns how many characters of text directly inside the given tag are
+   * passed to {@link #tagText}, the rest is dropped. 0 means that the text
+   * isn't needed, and {@link #tagText} isn't called for it. Unlimited by
+   * default.
+   */
+  protected int getMaxTextLength(int tag) {
+    return Integer.MAX_VALUE;
   }
 
-  private void onCloseTag(String tag) {
-    currentTags.pop();
+  /**
+   * Returns the ID of the innermost open tag, or {@link #OTHER_TAG} outside of
+   * all tags.
+   */
+  protected int getCurrentTag() {
+    return depth > 0 ? tagStack[depth - 1] : OTHER_TAG;
   }
 
-  private void onTagText(String text) {
+  /**
+   * Returns the ID of the tag around the innermost open tag, or
+   * {@link #OTHER_TAG} at the top level.
+   */
+  protected int getParentTag() {
+    return depth > 1 ? tagStack[depth - 2] : OTHER_TAG;
+  }
+
+  /**
+   * Returns the lowercase name of a known tag.
+   */
+  protected String getTagName(int tag) {
+    return tagNames[tag];
+  }
 
+  /**
+   * Returns the value of an attribute of the tag that has just been opened,
+   * or null. The name is matched ignoring case.
+   */
+  protected String getAttribute(String name) {
+    for (int i = 0; i < xpp.getAttributeCount(); i++) {
+      if (name.equalsIgnoreCase(xpp.getAttributeName(i))) {
+        return xpp.getAttributeValue(i);
+      }
+    }
+    return null;
   }
 
-  protected String getCurrentTag() {
-    return currentTags.peek();
+  protected int getAttributeCount() {
+    return xpp.getAttributeCount();
   }
 
-  protected String getParentTag() {
-    String current = currentTags.pop();
-    String parent = currentTags.peek();
-    currentTags.push(current);
-    return parent;
+  /**
+   * Returns the lowercase name of the i-th attribute of the tag that has just
+   * been opened.
+   */
+  protected String getAttributeName(int i) {
+    return xpp.getAttributeName(i).toLowerCase();
+  }
+
+  protected String getAttributeValue(int i) {
+    return xpp.getAttributeValue(i);
+  }
+
+  /**
+   * Passes the current text event to the subclass, cut to the limit of the
+   * current tag. next() delivers all text between two tags as one event, with
+   * entity references and CDATA sections merged in.
+   */
+  private void passText() {
+    int limit = getMaxTextLength(getCurrentTag());
+    if (limit <= 0) {
+      return;
+    }
+    char[] chars = xpp.getTextCharacters(textBounds);
+    tagText(new String(chars, textBounds[0], Math.min(limit, textBounds[1])));
+  }
+
+  private int idOf(String name) {
+    Integer id = tagIds.get(name);
+    if (id == null) {
+      // toLowerCase only copies names that have uppercase letters
+      id = tagIds.get(name.toLowerCase());
+    }
+    return id == null ? OTHER_TAG : id;
+  }
+
+  private void push(int tag, String name) {
+    if (depth == tagStack.length) {
+      int[] tags = new int[depth * 2];
+      System.arraycopy(tagStack, 0, tags, 0, depth);
+      tagStack = tags;
+      String[] names = new String[depth * 2];
+      System.arraycopy(nameStack, 0, names, 0, depth);
+      nameStack = names;
+    }
+    tagStack[depth] = tag;
+    nameStack[depth] = name;
+    depth++;
   }
 }
@@ -0,0 +1,83 @@
+/*******************************************************************************
+ * Copyright 2012 Crazywater
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package de.knufficast.logic.db;
+
+/**
+ * Statistics about the read cache of a {@link Database} for one column of a
+ * table. Immutable snapshot.
+ * 
+ * @author crazywater
+ * 
+ */
+public class CacheStats {
+  private final String table;
+  private final String column;
+  private final long hits;
+  private final long misses;
+  private final long evictions;
+
+  CacheStats(String table, String column, long hits, long misses,
+      long evictions) {
+    this.table = table;
+    this.column = column;
+    this.hits = hits;
+    this.misses = misses;
+    this.evictions = evictions;
+  }
+
+  public String getTable() {
+    return table;
+  }
+
+  public String getColumn() {
+    return column;
+  }
+
+  /**
+   * How many reads were answered from the cache.
+   */
+  public long getHits() {
+    return hits;
+  }
+
+  /**
+   * How many reads had to go to the database.
+   */
+  public long getMisses() {
+    return misses;
+  }
+
+  /**
+   * How many values were thrown out of the cache to stay within its budget.
+   */
+  public long getEvictions() {
+    return evictions;
+  }
+
+  /**
+   * The share of reads that were answered from the cache, between 0 and 1.
+   */
+  public double getHitRate() {
+    long total = hits + misses;
+    return total == 0 ? 0 : (double) hits / total;
+  }
+
+  @Override
+  public String toString() {
+    return table + "." + column + ": " + hits + " hits, " + misses
+        + " misses, " + evictions + " evictions";
+  }
+}
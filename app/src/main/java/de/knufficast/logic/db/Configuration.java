@@ -18,6 +18,7 @@ package de.knufficast.logic.db;
 import java.util.ArrayList;
 import java.util.List;
 
+import android.content.ContentValues;
 import android.content.SharedPreferences;
 import android.preference.PreferenceManager;
 import de.knufficast.App;
@@ -32,16 +33,19 @@ import de.knufficast.watchers.UpdaterService;
  */
 public class Configuration {
   private static final String LAST_UPDATE_KEY = "lastUpdated";
+  // the episodes with a download state (arg 1), uses its index
+  static final String WHERE_DOWNLOAD_STATE = SQLiteHelper.C_EP_DOWNLOAD_STATE
+      + " = ?";
   private FlattrConfiguration flattrConfig;
 
   /**
    * Gets a list of all feeds.
    */
   public List<DBFeed> getAllFeeds() {
-    List<Long> ids = App.get().getDB().getIds(SQLiteHelper.TABLE_FEEDS);
-    List<DBFeed> result = new ArrayList<DBFeed>();
-    for (Long id : ids) {
-      result.add(new DBFeed(id));
+    long[] ids = App.get().getDB().getIds(SQLiteHelper.TABLE_FEEDS);
+    List<DBFeed> result = new ArrayList<DBFeed>(ids.length);
+    for (long id : ids) {
+      result.add(DBFeed.get(id));
     }
     return result;
   }
@@ -75,27 +79,43 @@ public class Configuration {
     if (!moreFeeds.iterator().hasNext()) {
       return;
     }
+    StringBuilder feedIds = new StringBuilder();
     for (DBFeed feed : moreFeeds) {
-      // set episodes in new feeds as old per default
-      for (DBEpisode ep : feed.getEpisodes()) {
-        ep.setNew(false);
+      if (feedIds.length() > 0) {
+        feedIds.append(',');
       }
+      feedIds.append(feed.getId());
     }
+    // set episodes in new feeds as old per default
+    ContentValues values = new ContentValues();
+    values.put(SQLiteHelper.C_EP_IS_NEW, 0);
+    App.get().getDB().updateWhereAsync(SQLiteHelper.TABLE_EPISODE_STATE,
+        values, whereInFeeds(feedIds), null);
+  }
+
+  /**
+   * The episodes of the feeds with the given comma-separated IDs.
+   */
+  static String whereInFeeds(CharSequence feedIds) {
+    return SQLiteHelper.C_ID + " IN (SELECT " + SQLiteHelper.C_ID + " FROM "
+        + SQLiteHelper.TABLE_EPISODES + " WHERE " + SQLiteHelper.C_EP_FEED_ID
+        + " IN (" + feedIds + "))";
   }
 
   /**
    * Sanitizes the input after reloading the configuration, i.e. changes values
    * that indicate that the application was terminated abnormally. Should only
-   * be called after restarting the application.
+   * be called after restarting the application, before anything else uses the
+   * episodes: the download watchers restart the interrupted downloads right
+   * afterwards. Runs synchronously, which is cheap at that point: nothing is
+   * pending yet, and it is one indexed UPDATE.
    */
   public void sanitize() {
-    for (DBFeed feed : getAllFeeds()) {
-      for (DBEpisode ep : feed.getEpisodes()) {
-        if (ep.getDownloadState() == DownloadState.DOWNLOADING) {
-          ep.setDownloadState(DownloadState.ERROR);
-        }
-      }
-    }
+    ContentValues values = new ContentValues();
+    values.put(SQLiteHelper.C_EP_DOWNLOAD_STATE, DownloadState.ERROR.ordinal());
+    String[] args = { String.valueOf(DownloadState.DOWNLOADING.ordinal()) };
+    App.get().getDB().updateWhere(SQLiteHelper.TABLE_EPISODE_STATE,
+        values, WHERE_DOWNLOAD_STATE, args);
   }
 
   /**
@@ -148,6 +168,24 @@ public class Configuration {
     return getSharedPreferences().getBoolean("pref_key_auto_flattr", false);
   }
 
+  /**
+   * How many of the latest episodes of each feed to keep, 0 for all. See
+   * {@link EpisodeRetention}.
+   */
+  public int getKeepEpisodes() {
+    return Integer.parseInt(getSharedPreferences().getString(
+        "pref_key_keep_episodes", "0"));
+  }
+
+  /**
+   * For how many days to keep episodes after they first appeared in their
+   * feed, 0 for forever. See {@link EpisodeRetention}.
+   */
+  public int getKeepDays() {
+    return Integer.parseInt(getSharedPreferences().getString(
+        "pref_key_keep_days", "0"));
+  }
+
   /**
    * The feed update interval in milliseconds. Note that this is 1000 times what
    * the {@link SharedPreferences} save.
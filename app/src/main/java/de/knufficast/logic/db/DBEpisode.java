@@ -15,10 +15,18 @@
  ******************************************************************************/
 package de.knufficast.logic.db;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 import de.knufficast.App;
 import de.knufficast.events.EpisodeDownloadProgressEvent;
 import de.knufficast.events.EpisodeDownloadStateEvent;
 import de.knufficast.events.FlattrStateEvent;
+import de.knufficast.util.HashUtil;
 
 /**
  * An entry in a {@link DBFeed}. This doesn't necessarily mean that there is an
@@ -29,36 +37,174 @@ import de.knufficast.events.FlattrStateEvent;
  */
 public class DBEpisode {
   private static final String TABLE = SQLiteHelper.TABLE_EPISODES;
+  private static final String STATE_TABLE = SQLiteHelper.TABLE_EPISODE_STATE;
 
   /**
-   * Which download state this episode is currently in.
+   * Which download state this episode is currently in. Stored by ordinal, so
+   * only ever append new values.
    */
   public enum DownloadState {
     DOWNLOADING, ERROR, FINISHED, NONE, PAUSED
   }
 
   /**
-   * Which state of flattring the episode is currently in.
+   * Which state of flattring the episode is currently in. Stored by ordinal, so
+   * only ever append new values.
    */
   public enum FlattrState {
     ENQUEUED, ERROR, FLATTRED, NONE
   }
 
   /**
-   * Which state of playing the episode is currently in.
+   * Which state of playing the episode is currently in. Stored by ordinal, so
+   * only ever append new values.
    */
   public enum PlayState {
     FINISHED, NONE, STARTED_PLAYING
   }
 
-  private Database db;
+  // values() copies the array on every call
+  private static final DownloadState[] DOWNLOAD_STATES = DownloadState.values();
+  private static final FlattrState[] FLATTR_STATES = FlattrState.values();
+  private static final PlayState[] PLAY_STATES = PlayState.values();
+
+  /**
+   * The columns needed to display an episode in a list.
+   */
+  private static final String[] LIST_COLUMNS = { SQLiteHelper.C_EP_FEED_ID,
+      SQLiteHelper.C_EP_TITLE, SQLiteHelper.C_EP_IMG_URL,
+      SQLiteHelper.C_EP_DATA_URL };
+
+  private static final HandleRegistry<DBEpisode> registry = new HandleRegistry<DBEpisode>() {
+    @Override
+    protected DBEpisode create(long id) {
+      return new DBEpisode(id);
+    }
+  };
+  private static final ShowNotes notes = new ShowNotes(App.get().getDB());
+
+  private final Database db;
   private final long id;
+  // an episode never changes its feed, 0 until it is known
+  private volatile long feedId = 0;
 
-  public DBEpisode(long id) {
+  private DBEpisode(long id) {
     this.id = id;
     db = App.get().getDB();
   }
 
+  /**
+   * Returns the episode with this ID. As long as it is in use, the same
+   * instance is returned for the same ID.
+   */
+  public static DBEpisode get(long id) {
+    return registry.get(id);
+  }
+
+  /**
+   * Reads snapshots of everything needed to display the episodes in a list,
+   * keyed by episode ID. Each snapshot has the list columns of the episode and
+   * all columns of its state. Goes to the database, so call this from
+   * {@link Database#readAsync}.
+   */
+  public static Map<Long, Row> snapshot(Database db,
+      Collection<DBEpisode> episodes) {
+    List<Long> ids = new ArrayList<Long>(episodes.size());
+    for (DBEpisode ep : episodes) {
+      ids.add(ep.getId());
+    }
+    Map<Long, Row> rows = db.snapshot(TABLE, ids, LIST_COLUMNS);
+    Map<Long, Row> states = db.snapshot(STATE_TABLE, ids,
+        SQLiteHelper.EP_STATE_COLUMNS);
+    Map<Long, Row> result = new HashMap<Long, Row>();
+    for (long id : ids) {
+      result.put(id, rows.get(id).with(states.get(id)));
+    }
+    return result;
+  }
+
+  /**
+   * Reads a snapshot of everything needed to display the details of an
+   * episode: all columns of the episode and its state, and its decompressed
+   * show notes. Goes to the database, so call this from
+   * {@link Database#readAsync}.
+   */
+  public static Row snapshotDetails(Database db, DBEpisode episode) {
+    long id = episode.getId();
+    List<Long> ids = Collections.singletonList(id);
+    Map<String, Object> showNotes = new HashMap<String, Object>();
+    showNotes.put(SQLiteHelper.C_EP_DESCRIPTION, notes.getDescription(id));
+    showNotes.put(SQLiteHelper.C_EP_CONTENT, notes.getContent(id));
+    return db.snapshot(TABLE, ids, SQLiteHelper.EP_COLUMNS).get(id)
+        .with(db.snapshot(STATE_TABLE, ids, SQLiteHelper.EP_STATE_COLUMNS)
+            .get(id)).with(new Row(id, showNotes));
+  }
+
+  /**
+   * Decodes the download state of an episode snapshot from
+   * {@link #snapshot}.
+   */
+  public static DownloadState getDownloadState(Row row) {
+    return DOWNLOAD_STATES[row.getInt(SQLiteHelper.C_EP_DOWNLOAD_STATE)];
+  }
+
+  /**
+   * Decodes the flattr state of an episode snapshot.
+   */
+  public static FlattrState getFlattrState(Row row) {
+    return FLATTR_STATES[row.getInt(SQLiteHelper.C_EP_FLATTR_STATE)];
+  }
+
+  /**
+   * Decodes the play state of an episode snapshot.
+   */
+  public static PlayState getPlayState(Row row) {
+    return PLAY_STATES[row.getInt(SQLiteHelper.C_EP_PLAY_STATE)];
+  }
+
+  /**
+   * Whether the episode of a snapshot has an audio file, see
+   * {@link #hasDownload()}.
+   */
+  public static boolean hasDownload(Row row) {
+    return !"".equals(row.getString(SQLiteHelper.C_EP_DATA_URL));
+  }
+
+  /**
+   * Whether the episode of a snapshot from {@link #snapshotDetails} can be
+   * flattred, see {@link #hasFlattr()}.
+   */
+  public static boolean hasFlattr(Row row) {
+    return !"".equals(row.getString(SQLiteHelper.C_EP_FLATTR_URL));
+  }
+
+  /**
+   * Forgets the cached state and show notes of episodes whose rows have been
+   * deleted. The foreign keys delete them in SQLite, past the caches, so
+   * otherwise handles that are still around would read stale values, and the
+   * caches would hold them until they are evicted.
+   */
+  public static void evict(Database db, Collection<Long> ids) {
+    db.evictRows(STATE_TABLE, ids);
+    for (long id : ids) {
+      notes.evict(id);
+    }
+  }
+
+  /**
+   * Computes the stable identity of an episode within its feed: a hash of the
+   * guid, or of the enclosure URL for items without guid, or of the title for
+   * items without either.
+   */
+  public static long fingerprint(String guid, String dataUrl, String title) {
+    if (guid != null && guid.length() > 0) {
+      return HashUtil.fnv1a64("guid:" + guid);
+    } else if (dataUrl != null && dataUrl.length() > 0) {
+      return HashUtil.fnv1a64("url:" + dataUrl);
+    }
+    return HashUtil.fnv1a64("title:" + (title == null ? "" : title));
+  }
+
   @Override
   public boolean equals(Object other) {
     if (!(other instanceof DBEpisode)) {
@@ -81,10 +227,11 @@ public class DBEpisode {
   }
 
   /**
-   * XML-description or human-readable text description of the episode.
+   * XML-description or human-readable text description of the episode. Read
+   * from the database on demand.
    */
   public String getDescription() {
-    return db.get(TABLE, id, SQLiteHelper.C_EP_DESCRIPTION);
+    return notes.getDescription(id);
   }
 
   /**
@@ -92,13 +239,13 @@ public class DBEpisode {
    * after starting a download.
    */
   public long getDownloadedBytes() {
-    String dbStr = db.get(TABLE, id, SQLiteHelper.C_EP_DOWNLOADED_BYTES);
-    return Long.valueOf(dbStr).longValue();
+    return db
+        .getLong(STATE_TABLE, id, SQLiteHelper.C_EP_DOWNLOADED_BYTES);
   }
 
   public DownloadState getDownloadState() {
-    String dbStr = db.get(TABLE, id, SQLiteHelper.C_EP_DOWNLOAD_STATE);
-    return DownloadState.valueOf(dbStr);
+    return DOWNLOAD_STATES[db.getInt(STATE_TABLE, id,
+        SQLiteHelper.C_EP_DOWNLOAD_STATE)];
   }
 
   /**
@@ -106,8 +253,7 @@ public class DBEpisode {
    * episode has never been prepared by the QueuePlayer.
    */
   public int getDuration() {
-    String dbStr = db.get(TABLE, id, SQLiteHelper.C_EP_DURATION);
-    return Integer.valueOf(dbStr).intValue();
+    return db.getInt(STATE_TABLE, id, SQLiteHelper.C_EP_DURATION);
   }
 
   public String getFileLocation() {
@@ -117,8 +263,8 @@ public class DBEpisode {
   }
 
   public FlattrState getFlattrState() {
-    String dbStr = db.get(TABLE, id, SQLiteHelper.C_EP_FLATTR_STATE);
-    return FlattrState.valueOf(dbStr);
+    return FLATTR_STATES[db.getInt(STATE_TABLE, id,
+        SQLiteHelper.C_EP_FLATTR_STATE)];
   }
 
   public String getFlattrUrl() {
@@ -133,8 +279,12 @@ public class DBEpisode {
     return db.get(TABLE, id, SQLiteHelper.C_EP_GUID);
   }
 
+  /**
+   * The full show notes of the episode, "" if the feed has none. Read from the
+   * database on demand.
+   */
   public String getContent() {
-    return db.get(TABLE, id, SQLiteHelper.C_EP_CONTENT);
+    return notes.getContent(id);
   }
 
   /**
@@ -145,8 +295,8 @@ public class DBEpisode {
   }
 
   public PlayState getPlayState() {
-    String dbStr = db.get(TABLE, id, SQLiteHelper.C_EP_PLAY_STATE);
-    return PlayState.valueOf(dbStr);
+    return PLAY_STATES[db.getInt(STATE_TABLE, id,
+        SQLiteHelper.C_EP_PLAY_STATE)];
   }
 
   /**
@@ -156,8 +306,7 @@ public class DBEpisode {
    *          the location in milliseconds
    */
   public int getSeekLocation() {
-    String dbStr = db.get(TABLE, id, SQLiteHelper.C_EP_SEEK_LOCATION);
-    return Integer.valueOf(dbStr).intValue();
+    return db.getInt(STATE_TABLE, id, SQLiteHelper.C_EP_SEEK_LOCATION);
   }
 
   /**
@@ -172,8 +321,7 @@ public class DBEpisode {
    * after starting a download (0 otherwise).
    */
   public long getTotalBytes() {
-    String dbStr = db.get(TABLE, id, SQLiteHelper.C_EP_TOTAL_BYTES);
-    return Long.valueOf(dbStr).longValue();
+    return db.getLong(STATE_TABLE, id, SQLiteHelper.C_EP_TOTAL_BYTES);
   }
 
   /**
@@ -199,18 +347,13 @@ public class DBEpisode {
    * queue.
    */
   public boolean isNew() {
-    String dbStr = db.get(TABLE, id, SQLiteHelper.C_EP_IS_NEW);
-    return dbStr == "1";
+    return db.getInt(STATE_TABLE, id, SQLiteHelper.C_EP_IS_NEW) == 1;
   }
 
   public void setDataUrl(String dataUrl) {
     db.put(TABLE, id, SQLiteHelper.C_EP_DATA_URL, dataUrl);
   }
 
-  public void setDescription(String description) {
-    db.put(TABLE, id, SQLiteHelper.C_EP_DESCRIPTION, description);
-  }
-
   /**
    * Sets the download progress of this episode.
    * 
@@ -220,9 +363,9 @@ public class DBEpisode {
    *          total size of the episode download
    */
   public void setDownloadProgress(long downloadedBytes, long totalBytes) {
-    db.put(TABLE, id, SQLiteHelper.C_EP_DOWNLOADED_BYTES,
-        String.valueOf(downloadedBytes));
-    db.put(TABLE, id, SQLiteHelper.C_EP_TOTAL_BYTES, String.valueOf(totalBytes));
+    db.putLong(STATE_TABLE, id, SQLiteHelper.C_EP_DOWNLOADED_BYTES,
+        downloadedBytes);
+    db.putLong(STATE_TABLE, id, SQLiteHelper.C_EP_TOTAL_BYTES, totalBytes);
     App.get().getEventBus().fireEvent(new EpisodeDownloadProgressEvent(id));
   }
 
@@ -233,7 +376,8 @@ public class DBEpisode {
    * @param downloadState
    */
   public void setDownloadState(DownloadState downloadState) {
-    db.put(TABLE, id, SQLiteHelper.C_EP_DOWNLOAD_STATE, downloadState.name());
+    db.putLong(STATE_TABLE, id, SQLiteHelper.C_EP_DOWNLOAD_STATE,
+        downloadState.ordinal());
     App.get().getEventBus().fireEvent(new EpisodeDownloadStateEvent(id));
   }
 
@@ -241,11 +385,12 @@ public class DBEpisode {
    * Sets the duration of this episode in milliseconds.
    */
   public void setDuration(int duration) {
-    db.put(TABLE, id, SQLiteHelper.C_EP_DURATION, String.valueOf(duration));
+    db.putLong(STATE_TABLE, id, SQLiteHelper.C_EP_DURATION, duration);
   }
 
   public void setFlattrState(FlattrState flattrState) {
-    db.put(TABLE, id, SQLiteHelper.C_EP_FLATTR_STATE, flattrState.name());
+    db.putLong(STATE_TABLE, id, SQLiteHelper.C_EP_FLATTR_STATE,
+        flattrState.ordinal());
     App.get().getEventBus().fireEvent(new FlattrStateEvent());
   }
 
@@ -262,11 +407,12 @@ public class DBEpisode {
   }
 
   public void setNew(boolean isNew) {
-    db.put(TABLE, id, SQLiteHelper.C_EP_IS_NEW, isNew ? "1" : "0");
+    db.putLong(STATE_TABLE, id, SQLiteHelper.C_EP_IS_NEW, isNew ? 1 : 0);
   }
 
   public void setPlayState(PlayState playState) {
-    db.put(TABLE, id, SQLiteHelper.C_EP_PLAY_STATE, playState.name());
+    db.putLong(STATE_TABLE, id, SQLiteHelper.C_EP_PLAY_STATE,
+        playState.ordinal());
   }
 
   /**
@@ -276,7 +422,7 @@ public class DBEpisode {
    *          the location in milliseconds
    */
   public void setSeekLocation(int location) {
-    db.put(TABLE, id, SQLiteHelper.C_EP_SEEK_LOCATION, String.valueOf(location));
+    db.putLong(STATE_TABLE, id, SQLiteHelper.C_EP_SEEK_LOCATION, location);
   }
 
   public void setTitle(String title) {
@@ -284,7 +430,13 @@ public class DBEpisode {
   }
 
   public DBFeed getFeed() {
-    long feedId = db.getLong(TABLE, id, SQLiteHelper.C_EP_FEED_ID);
-    return new DBFeed(feedId);
+    return DBFeed.get(getFeedId());
+  }
+
+  private long getFeedId() {
+    if (feedId == 0) {
+      feedId = db.getLong(TABLE, id, SQLiteHelper.C_EP_FEED_ID);
+    }
+    return feedId;
   }
 }
@@ -16,7 +16,9 @@
 package de.knufficast.logic.db;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 import de.knufficast.App;
 
@@ -29,14 +31,43 @@ import de.knufficast.App;
 public class DBFeed {
   private static final String TABLE = SQLiteHelper.TABLE_FEEDS;
   private static final String EP_TABLE = SQLiteHelper.TABLE_EPISODES;
+  // the episodes of a feed (arg 1)
+  static final String WHERE_EPISODES = SQLiteHelper.C_EP_FEED_ID + " = ?";
+  private static final HandleRegistry<DBFeed> registry = new HandleRegistry<DBFeed>() {
+    @Override
+    protected DBFeed create(long id) {
+      return new DBFeed(id);
+    }
+  };
+
   private final long id;
   private final Database db;
 
-  public DBFeed(long id) {
+  private DBFeed(long id) {
     this.id = id;
     db = App.get().getDB();
   }
 
+  /**
+   * Returns the feed with this ID. As long as it is in use, the same instance
+   * is returned for the same ID.
+   */
+  public static DBFeed get(long id) {
+    return registry.get(id);
+  }
+
+  /**
+   * Reads snapshots of all columns of the given feeds, keyed by feed ID. Goes
+   * to the database, so call this from {@link Database#readAsync}.
+   */
+  public static Map<Long, Row> snapshot(Database db, Collection<DBFeed> feeds) {
+    List<Long> ids = new ArrayList<Long>(feeds.size());
+    for (DBFeed feed : feeds) {
+      ids.add(feed.getId());
+    }
+    return db.snapshot(TABLE, ids, SQLiteHelper.FD_COLUMNS);
+  }
+
   public long getId() {
     return id;
   }
@@ -56,14 +87,51 @@ public class DBFeed {
   }
 
   /**
-   * Returns the list of episodes of this feed.
+   * Returns the list of episodes of this feed, newest first.
    */
   public List<DBEpisode> getEpisodes() {
-    List<DBEpisode> result = new ArrayList<DBEpisode>();
-    List<Long> children = db.query(EP_TABLE, SQLiteHelper.C_EP_FEED_ID,
-        String.valueOf(id));
-    for (Long id : children) {
-      result.add(new DBEpisode(id));
+    return toEpisodes(getEpisodeIds());
+  }
+
+  /**
+   * Returns the IDs of the episodes of this feed, newest first.
+   */
+  public long[] getEpisodeIds() {
+    return db.query(EP_TABLE, SQLiteHelper.C_EP_FEED_ID, String.valueOf(id));
+  }
+
+  /**
+   * Returns a page of the episodes of this feed, newest first.
+   * 
+   * @param before
+   *          the last episode of the previous page, or null for the first page
+   * @param limit
+   *          the maximum number of episodes
+   */
+  public List<DBEpisode> getEpisodePage(DBEpisode before, int limit) {
+    long beforeId = before == null ? Long.MAX_VALUE : before.getId();
+    return toEpisodes(db.queryPage(EP_TABLE, SQLiteHelper.C_EP_FEED_ID,
+        String.valueOf(id), beforeId, limit));
+  }
+
+  /**
+   * Deletes all episodes of this feed with one statement. The foreign keys
+   * delete their state, notes and queue rows. Blocks, so don't call this on the
+   * UI thread.
+   * 
+   * @return the number of deleted episodes
+   * @throws IllegalStateException
+   *           see {@link Database#deleteWhere}; nothing is deleted then
+   */
+  public int deleteEpisodes() {
+    String[] args = { String.valueOf(id) };
+    return db.deleteWhere(EP_TABLE, WHERE_EPISODES, args);
+  }
+
+  private static List<DBEpisode> toEpisodes(long[] ids) {
+    List<DBEpisode> result = new ArrayList<DBEpisode>(ids.length);
+    for (long id : ids) {
+      result.add(DBEpisode.get(id));
     }
     return result;
   }
@@ -102,6 +170,14 @@ public class DBFeed {
     return Long.valueOf(dbStr).longValue();
   }
 
+  /**
+   * Whether refreshes read the whole feed, instead of stopping at the first
+   * known episodes. Needed for feeds that don't list the newest episodes first.
+   */
+  public boolean isReadAll() {
+    return db.getLong(TABLE, id, SQLiteHelper.C_FD_READ_ALL) != 0;
+  }
+
   /**
    * Returns the human-readable title of this feed.
    */
@@ -134,6 +210,10 @@ public class DBFeed {
         String.valueOf(lastUpdated));
   }
 
+  public void setReadAll(boolean readAll) {
+    db.putLong(TABLE, id, SQLiteHelper.C_FD_READ_ALL, readAll ? 1 : 0);
+  }
+
   public void setTitle(String title) {
     db.put(TABLE, id, SQLiteHelper.C_FD_TITLE, title);
   }
@@ -17,136 +17,542 @@ package de.knufficast.logic.db;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
-import java.util.concurrent.ConcurrentHashMap;
 
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.StrictMode;
 import android.util.Log;
+import de.knufficast.BuildConfig;
+import de.knufficast.util.Callback;
+import de.knufficast.util.Function;
 
 /**
  * A connection to the Android-internal SQLite3 database. Caches writes so that
- * multiple writes only write the last result. Also caches reads, so multiple
- * reads don't go to the database.
+ * multiple writes only write the last result. Also caches reads in a bounded
+ * LRU cache, so multiple reads don't go to the database.
+ * 
+ * <p>
+ * The database is in write-ahead logging mode, in which SQLiteDatabase keeps
+ * a pool of connections. A read outside of a transaction runs on a pooled
+ * read connection, so it doesn't wait for write transactions of other threads
+ * such as a flush or a feed merge. A read inside a transaction runs on the
+ * connection of the transaction and sees its writes.
+ * 
+ * <p>
+ * The UI thread should only read through {@link #readAsync}, which runs
+ * queries on a dedicated reader thread. In debug builds, reads that reach
+ * SQLite on the UI thread are reported to {@link StrictMode} as slow calls.
  * 
  * @author crazywater
  * 
  */
 public class Database {
-  private final Map<ColId, String> cache = new ConcurrentHashMap<ColId, String>();
+  // maximum number of ids in a single "IN (...)" clause
+  private static final int MAX_IDS_PER_QUERY = 500;
+  private static final long DEFAULT_CACHE_BUDGET = 1024 * 1024; // 1MB
+  // WAL size that forces a checkpoint inside a commit, in pages
+  private static final int WAL_AUTOCHECKPOINT_PAGES = 4000;
+  // PRAGMA auto_vacuum value
+  private static final int INCREMENTAL_VACUUM = 2;
+  // the order of getIds(String) and query
+  static final String NEWEST_FIRST = SQLiteHelper.C_ID + " DESC";
+
+  // the read cache and the pending writes
+  private final RowCache cache = new RowCache(DEFAULT_CACHE_BUDGET);
 
   private final SQLiteHelper dbHelper;
   private final DBUpdater dbUpdater;
+  private final HandlerThread reader;
+  private final Handler readHandler;
+  private final Handler mainHandler;
   private SQLiteDatabase database;
+  private StatementCache statements;
+  private volatile FlushStats flushStats = new FlushStats(0, 0, 0, 0, 0);
 
-  private class ColId {
-    ColId(String table, String column, long id) {
-      this.table = table;
-      this.column = column;
-      this.id = id;
-    }
-
-    String table;
-    String column;
-    long id;
-
-    @Override
-    public boolean equals(Object other) {
-      if (!(other instanceof ColId)) {
-        return false;
-      }
-      ColId c = (ColId) other;
-      return id == c.id && table.equals(c.table) && column.equals(c.column);
-    }
+  public Database(Context context) {
+    this(new SQLiteHelper(context));
+  }
 
-    @Override
-    public int hashCode() {
-      return table.hashCode() ^ column.hashCode() ^ Long.valueOf(id).hashCode();
-    }
+  /**
+   * Opens a database in another file, e.g. for tests.
+   */
+  Database(Context context, String name) {
+    this(new SQLiteHelper(context, name));
   }
 
-  public Database(Context context) {
-    dbHelper = new SQLiteHelper(context);
+  private Database(SQLiteHelper dbHelper) {
+    this.dbHelper = dbHelper;
     dbUpdater = new DBUpdater();
     dbUpdater.start();
+    reader = new HandlerThread("DBReader");
+    reader.start();
+    readHandler = new Handler(reader.getLooper());
+    mainHandler = new Handler(Looper.getMainLooper());
   }
 
   public void open() throws SQLException {
     database = dbHelper.getWritableDatabase();
+    database.enableWriteAheadLogging();
+    // only a backstop, see DBUpdater#checkpoint
+    pragma("wal_autocheckpoint = " + WAL_AUTOCHECKPOINT_PAGES);
+    statements = new StatementCache(database);
   }
 
   public void close() {
+    statements.close();
     dbHelper.close();
   }
 
   /**
-   * Gets all row ids from the table.
+   * Writes all pending changes to the database and blocks until they are
+   * written. Don't call this on the UI thread.
+   * 
+   * @throws IllegalStateException
+   *           if the changes couldn't be written; they stay pending and are
+   *           tried again later
+   */
+  public void flush() {
+    dbUpdater.flushAndWait();
+  }
+
+  /**
+   * Requests that all pending changes are written to the database as soon as
+   * possible, without waiting for it.
+   */
+  public void flushAsync() {
+    dbUpdater.requestFlush();
+  }
+
+  /**
+   * Sets how many bytes the read cache may use (estimated). Evicts values if
+   * necessary.
+   */
+  public void setCacheBudget(long bytes) {
+    cache.setBudget(bytes);
+  }
+
+  /**
+   * Returns statistics about the read cache, one entry per table and column
+   * that has been read.
+   */
+  public List<CacheStats> getCacheStats() {
+    return cache.getStats();
+  }
+
+  /**
+   * Removes rows from the read cache, e.g. because they have been changed or
+   * deleted without going through this class.
+   */
+  public void evictRows(String table, Collection<Long> ids) {
+    for (long id : ids) {
+      cache.evictRow(table, id);
+    }
+  }
+
+  /**
+   * Runs a query on the reader thread and delivers its result on the UI
+   * thread. Queries run one after another, so results arrive in the order the
+   * queries were posted. The result should be immutable, e.g. {@link Row}s from
+   * {@link #snapshot}, so that the UI doesn't read from the database again.
+   * 
+   * @param query
+   *          called on the reader thread with this database
+   * @param callback
+   *          called on the UI thread with the result
+   */
+  public <T> void readAsync(final Function<Database, T> query,
+      final Callback<T> callback) {
+    readHandler.post(new Runnable() {
+      @Override
+      public void run() {
+        final T result = query.call(Database.this);
+        mainHandler.post(new Runnable() {
+          @Override
+          public void run() {
+            callback.call(result);
+          }
+        });
+      }
+    });
+  }
+
+  /**
+   * Reads the given columns of multiple rows into immutable snapshots, keyed by
+   * row ID. Goes to the database, so call this from {@link #readAsync}.
+   */
+  public Map<Long, Row> snapshot(String table, Collection<Long> ids,
+      String... columns) {
+    loadRows(table, ids, columns);
+    Map<Long, Row> rows = new HashMap<Long, Row>();
+    for (long id : ids) {
+      Map<String, Object> values = new HashMap<String, Object>();
+      for (String column : columns) {
+        Object value = cache.get(table, id, column);
+        if (value == null) {
+          // evicted again since loadRows
+          value = get(table, id, column);
+        }
+        values.put(column, value);
+      }
+      rows.put(id, new Row(id, values));
+    }
+    return rows;
+  }
+
+  /**
+   * Returns statistics about the writes that have been done in the background.
    */
-  public List<Long> getIds(String table) {
-    String[] id = { SQLiteHelper.C_ID };
-    Cursor cursor = database.query(table, id, null, null, null, null,
-        SQLiteHelper.C_ID + " DESC");
-    return getAllIds(cursor);
+  public FlushStats getFlushStats() {
+    return flushStats;
   }
 
   /**
-   * Querys the database for rows which have column=value.
+   * Gets all row ids from the table, newest first.
    */
-  public List<Long> query(String table, String column, String value) {
-    String[] id = { SQLiteHelper.C_ID };
+  public long[] getIds(String table) {
+    return getIds(table, NEWEST_FIRST);
+  }
+
+  /**
+   * Gets all row ids from the table, sorted by a column in ascending order.
+   */
+  public long[] getIds(String table, String orderBy) {
+    noteRead(table);
+    return getAllLongs(database.rawQuery(idsSql(table, orderBy), null));
+  }
+
+  /**
+   * Querys the database for the ids of rows which have column=value, newest
+   * first.
+   */
+  public long[] query(String table, String column, String value) {
     String[] values = { value };
-    Cursor cursor = database.query(table, id, column + " = ?", values, null,
-        null, SQLiteHelper.C_ID + " DESC");
-    return getAllIds(cursor);
+    noteRead(table);
+    return getAllLongs(database.rawQuery(querySql(table, column), values));
+  }
+
+  /**
+   * Querys one page of the ids of rows which have column=value, newest first.
+   * Pages are found by ID rather than by offset, so getting a page doesn't get
+   * slower the further back it is.
+   * 
+   * @param beforeId
+   *          only rows with smaller IDs are returned: the last ID of the
+   *          previous page, or Long.MAX_VALUE for the first page
+   * @param limit
+   *          the maximum number of IDs
+   */
+  public long[] queryPage(String table, String column, String value,
+      long beforeId, int limit) {
+    String[] values = { value, String.valueOf(beforeId),
+        String.valueOf(limit) };
+    noteRead(table);
+    return getAllLongs(database.rawQuery(queryPageSql(table, column), values));
+  }
+
+  /**
+   * Querys the database for the values of an INTEGER column in rows which have
+   * column=value.
+   */
+  public long[] queryLongs(String table, String resultColumn, String column,
+      String value) {
+    String[] values = { value };
+    noteRead(table);
+    return getAllLongs(database.rawQuery(
+        queryLongsSql(table, resultColumn, column), values));
+  }
+
+  /**
+   * Runs a SELECT of one integer column, e.g. over several tables. Inside
+   * {@link #runInTransaction}, it sees the writes of the transaction.
+   */
+  long[] selectLongs(String sql, String... args) {
+    noteRead(sql);
+    return getAllLongs(database.rawQuery(sql, args));
   }
 
   public void delete(String table, long id) {
-    database.delete(table, SQLiteHelper.C_ID + " = " + id, null);
+    cache.removeRow(table, id);
+    execute(StatementCache.deleteSql(table), id);
+  }
+
+  /**
+   * Updates all rows that match the where clause with one statement. Pending
+   * writes are done first, and cached values of the changed columns are
+   * dropped, so that neither overwrites the new values. Blocks until the
+   * pending writes are done, so don't call this on the UI thread (see
+   * {@link #updateWhereAsync}).
+   * 
+   * @return the number of changed rows
+   * @throws IllegalStateException
+   *           if the pending writes couldn't be done; nothing is updated then
+   */
+  public int updateWhere(String table, ContentValues values,
+      String whereClause, String[] whereArgs) {
+    flush();
+    String[] columns = values.keySet().toArray(new String[values.size()]);
+    // not cached, the where clause may contain IDs
+    SQLiteStatement statement = database.compileStatement(updateWhereSql(
+        table, columns, whereClause));
+    int count;
+    try {
+      for (int i = 0; i < columns.length; i++) {
+        bind(statement, i + 1, values.get(columns[i]));
+      }
+      if (whereArgs != null) {
+        for (int i = 0; i < whereArgs.length; i++) {
+          bind(statement, columns.length + i + 1, whereArgs[i]);
+        }
+      }
+      count = statement.executeUpdateDelete();
+    } finally {
+      statement.close();
+    }
+    cache.invalidate(table, values.keySet());
+    return count;
+  }
+
+  /**
+   * Like {@link #updateWhere}, but runs on the reader thread. Queries posted
+   * with {@link #readAsync} afterwards see the new values. If the pending
+   * writes couldn't be done, the update is dropped and logged.
+   */
+  public void updateWhereAsync(final String table, final ContentValues values,
+      final String whereClause, final String[] whereArgs) {
+    readHandler.post(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          updateWhere(table, values, whereClause, whereArgs);
+        } catch (IllegalStateException e) {
+          Log.e("Database", "Update of " + table + " dropped", e);
+        }
+      }
+    });
+  }
+
+  /**
+   * Deletes all rows that match the where clause with one statement. Pending
+   * writes are done first, and the table is dropped from the cache. Blocks
+   * until the pending writes are done, so don't call this on the UI thread.
+   * 
+   * @return the number of deleted rows
+   * @throws IllegalStateException
+   *           if the pending writes couldn't be done; nothing is deleted then
+   */
+  public int deleteWhere(String table, String whereClause, String[] whereArgs) {
+    flush();
+    int count = execute(deleteWhereSql(table, whereClause),
+        (Object[]) whereArgs);
+    cache.invalidate(table, null);
+    return count;
+  }
+
+  /**
+   * Like {@link #deleteWhere}, but first runs another statement with the same
+   * arguments in the same transaction, e.g. to keep a record of the rows that
+   * are deleted (see {@link #execute}).
+   * 
+   * @return the number of deleted rows
+   */
+  int deleteWhere(String table, String whereClause, String[] whereArgs,
+      String firstSql) {
+    flush();
+    int count;
+    database.beginTransaction();
+    try {
+      execute(firstSql, (Object[]) whereArgs);
+      count = execute(deleteWhereSql(table, whereClause), (Object[]) whereArgs);
+      database.setTransactionSuccessful();
+    } finally {
+      database.endTransaction();
+    }
+    cache.invalidate(table, null);
+    return count;
+  }
+
+  /**
+   * Runs an INSERT, UPDATE or DELETE that may change many rows, e.g. an INSERT
+   * ... SELECT, with a statement that is compiled only once. Bypasses the
+   * cache, so only use it for rows that aren't cached.
+   * 
+   * @return the number of changed rows
+   */
+  int execute(String sql, Object... args) {
+    SQLiteStatement statement = statements.compile(sql);
+    synchronized (statement) {
+      for (int i = 0; args != null && i < args.length; i++) {
+        bind(statement, i + 1, args[i]);
+      }
+      return statement.executeUpdateDelete();
+    }
+  }
+
+  /**
+   * Gives the space of deleted rows back to the file system once more than
+   * maxFreePages pages are unused. The first time, this converts the database
+   * to incremental auto-vacuum with one full VACUUM; afterwards, only the free
+   * pages are released. Blocks, so don't call this on the UI thread.
+   */
+  public void compact(int maxFreePages) {
+    long[] free = pragma("freelist_count");
+    if (free == null || free[0] <= maxFreePages) {
+      return;
+    }
+    long start = System.currentTimeMillis();
+    if (pragma("auto_vacuum")[0] != INCREMENTAL_VACUUM) {
+      database.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+      database.execSQL("VACUUM");
+    } else {
+      Cursor cursor = database.rawQuery("PRAGMA incremental_vacuum", null);
+      // every step releases one page
+      while (cursor.moveToNext()) {
+      }
+      cursor.close();
+    }
+    Log.d("Database", "Released " + free[0] + " free pages in "
+        + (System.currentTimeMillis() - start) + "ms");
   }
 
   /**
    * Gets a value from the database. Might be cached.
    */
   public String get(String table, long id, String column) {
-    String[] col = { column };
-    ColId key = new ColId(table, column, id);
-    if (cache.containsKey(key)) {
-      String result = cache.get(key);
-      return result;
+    Object cached = cache.get(table, id, column);
+    if (cached != null) {
+      return cached.toString();
     }
-    Cursor cursor = database.query(table, col, SQLiteHelper.C_ID + " = " + id,
-        null, null, null, null);
-    if (cursor.getCount() != 1) {
-      Log.e("Database", "Weird number of results: Table " + table + ", id "
-          + id
-          + ", column " + column + ": results: " + cursor.getCount());
-      return "";
+    noteRead(table);
+    SQLiteStatement statement = statements.select(table, column);
+    String result;
+    synchronized (statement) {
+      statement.bindLong(1, id);
+      try {
+        result = statement.simpleQueryForString();
+      } catch (SQLiteDoneException e) {
+        Log.e("Database", "No result: Table " + table + ", id " + id
+            + ", column " + column);
+        return "";
+      }
     }
-    cursor.moveToFirst();
-    String result = cursor.getString(0);
-    cursor.close();
-    return result;
+    return cache.fill(table, id, column, result).toString();
   }
 
   /**
-   * Returns a long value. Is only used for referencing rows of other tables.
+   * Gets a value of an INTEGER column from the database. Might be cached.
    */
   public long getLong(String table, long id, String column) {
-    String[] col = { column };
-    Cursor cursor = database.query(table, col, SQLiteHelper.C_ID + " = " + id,
-        null, null, null, null);
-    cursor.moveToFirst();
-    long result = cursor.getLong(0);
-    cursor.close();
+    Object cached = cache.get(table, id, column);
+    if (cached instanceof Long) {
+      return ((Long) cached).longValue();
+    } else if (cached != null) {
+      return Long.parseLong(cached.toString());
+    }
+    noteRead(table);
+    SQLiteStatement statement = statements.select(table, column);
+    long result;
+    synchronized (statement) {
+      statement.bindLong(1, id);
+      try {
+        result = statement.simpleQueryForLong();
+      } catch (SQLiteDoneException e) {
+        Log.e("Database", "No result: Table " + table + ", id " + id
+            + ", column " + column);
+        return 0;
+      }
+    }
+    cache.fill(table, id, column, result);
+    return result;
+  }
+
+  /**
+   * Gets a value of an INTEGER column from the database as an int. Might be
+   * cached.
+   */
+  public int getInt(String table, long id, String column) {
+    return (int) getLong(table, id, column);
+  }
+
+  /**
+   * Reads BLOB columns of a row. They are not cached. NULLs and the columns of
+   * a row that doesn't exist are returned as null.
+   */
+  public byte[][] getBlobs(String table, long id, String... columns) {
+    byte[][] result = new byte[columns.length][];
+    noteRead(table);
+    String[] args = { String.valueOf(id) };
+    Cursor cursor = database.rawQuery(blobsSql(table, columns), args);
+    try {
+      if (cursor.moveToFirst()) {
+        for (int i = 0; i < columns.length; i++) {
+          result[i] = cursor.isNull(i) ? null : cursor.getBlob(i);
+        }
+      }
+    } finally {
+      cursor.close();
+    }
     return result;
   }
 
+  /**
+   * Loads whole rows into the cache, so that following calls to {@link #get}
+   * for these rows don't go to the database.
+   * 
+   * @see #loadRows(String, Collection, String...)
+   */
+  public void loadRows(String table, Collection<Long> ids) {
+    loadRows(table, ids, SQLiteHelper.getColumns(table));
+  }
+
+  /**
+   * Loads the given columns of multiple rows into the cache in one cursor pass.
+   * Rows that already have all of these columns cached are skipped. Use this
+   * before displaying lists, so that rendering a row doesn't issue a query per
+   * getter.
+   * 
+   * @param table
+   *          the table
+   * @param ids
+   *          the row IDs
+   * @param columns
+   *          the columns to load
+   */
+  public void loadRows(String table, Collection<Long> ids, String... columns) {
+    List<Long> missing = new ArrayList<Long>();
+    for (long id : ids) {
+      if (!cache.containsAll(table, id, columns)) {
+        missing.add(id);
+      }
+    }
+    for (int start = 0; start < missing.size(); start += MAX_IDS_PER_QUERY) {
+      int end = Math.min(missing.size(), start + MAX_IDS_PER_QUERY);
+      noteRead(table);
+      Cursor cursor = database.rawQuery(loadRowsSql(table, columns,
+          missing.subList(start, end)), null);
+      cursor.moveToFirst();
+      while (!cursor.isAfterLast()) {
+        long id = cursor.getLong(0);
+        for (int i = 0; i < columns.length; i++) {
+          cache.fill(table, id, columns[i], readValue(cursor, i + 1));
+        }
+        cursor.moveToNext();
+      }
+      cursor.close();
+    }
+  }
+
   /**
    * Set a value in the table.
    * 
@@ -160,9 +566,43 @@ public class Database {
    *          the value
    */
   public void put(String table, long id, String column, String value) {
-    ColId colId = new ColId(table, column, id);
-    cache.put(colId, value);
-    dbUpdater.postUpdate(colId, value);
+    dbUpdater.postUpdate(cache.putDirty(table, id, column, value));
+  }
+
+  /**
+   * Set a value of an INTEGER column in the table.
+   * 
+   * @see #put(String, long, String, String)
+   */
+  public void putLong(String table, long id, String column, long value) {
+    dbUpdater.postUpdate(cache.putDirty(table, id, column,
+        Long.valueOf(value)));
+  }
+
+  /**
+   * Creates a row with the given ID, or resets an existing one, in the
+   * background like {@link #put}. Columns without a value get their default
+   * value.
+   * 
+   * @param table
+   *          the table
+   * @param id
+   *          the row ID
+   * @param columns
+   *          the columns that get values
+   * @param values
+   *          the values of the columns, Strings or Longs
+   */
+  public void createLater(String table, long id, String[] columns,
+      Object[] values) {
+    dbUpdater.postCreate(table, id, columns, values);
+  }
+
+  /**
+   * Deletes a row in the background, like {@link #put}.
+   */
+  public void deleteLater(String table, long id) {
+    dbUpdater.postDelete(table, id);
   }
 
   /**
@@ -182,70 +622,449 @@ public class Database {
     return id;
   }
 
-  private List<Long> getAllIds(Cursor cursor) {
-    cursor.moveToFirst();
+  /**
+   * Creates many rows in one transaction, with one compiled INSERT. The values
+   * can be Strings, Longs or byte arrays; null is stored as "".
+   * 
+   * @param table
+   *          the table
+   * @param columns
+   *          the columns that get values
+   * @param rows
+   *          for each row, the values of the columns
+   * @return the IDs of the rows, in the same order
+   */
+  public long[] createAll(String table, String[] columns, List<Object[]> rows) {
+    long[] ids = new long[rows.size()];
+    SQLiteStatement statement = statements.insert(table, columns);
+    database.beginTransaction();
+    try {
+      synchronized (statement) {
+        for (int i = 0; i < ids.length; i++) {
+          Object[] row = rows.get(i);
+          for (int j = 0; j < columns.length; j++) {
+            bind(statement, j + 1, row[j] == null ? "" : row[j]);
+          }
+          ids[i] = statement.executeInsert();
+        }
+      }
+      database.setTransactionSuccessful();
+    } finally {
+      database.endTransaction();
+    }
+    return ids;
+  }
 
-    List<Long> results = new ArrayList<Long>();
-    while (!cursor.isAfterLast()) {
-      results.add(cursor.getLong(0));
+  /**
+   * Runs a task in one transaction, so that either all or none of its writes
+   * to the database happen. Transactions can be nested. Writes that are cached
+   * (see {@link #put}) are not part of the transaction.
+   */
+  public void runInTransaction(Runnable task) {
+    database.beginTransaction();
+    try {
+      task.run();
+      database.setTransactionSuccessful();
+    } finally {
+      database.endTransaction();
+    }
+  }
+
+  /**
+   * Runs a PRAGMA and returns its first row, or null. PRAGMAs that return rows
+   * have to go through a query on Android.
+   */
+  private long[] pragma(String pragma) {
+    Cursor cursor = database.rawQuery("PRAGMA " + pragma, null);
+    try {
+      if (!cursor.moveToFirst()) {
+        return null;
+      }
+      long[] result = new long[cursor.getColumnCount()];
+      for (int i = 0; i < result.length; i++) {
+        result[i] = cursor.getLong(i);
+      }
+      return result;
+    } finally {
+      cursor.close();
+    }
+  }
+
+  /**
+   * In debug builds, reports a read that goes to SQLite on the UI thread.
+   */
+  private void noteRead(String table) {
+    if (BuildConfig.DEBUG && Looper.myLooper() == Looper.getMainLooper()) {
+      StrictMode.noteSlowCall("Database read on the UI thread: " + table);
+    }
+  }
+
+  /**
+   * Reads a value from a cursor as Long for INTEGER values, as String
+   * otherwise.
+   */
+  private Object readValue(Cursor cursor, int column) {
+    if (cursor.getType(column) == Cursor.FIELD_TYPE_INTEGER) {
+      return cursor.getLong(column);
+    }
+    return cursor.getString(column);
+  }
+
+  private long[] getAllLongs(Cursor cursor) {
+    long[] results = new long[cursor.getCount()];
+    cursor.moveToFirst();
+    for (int i = 0; i < results.length; i++) {
+      results[i] = cursor.getLong(0);
       cursor.moveToNext();
     }
     cursor.close();
     return results;
   }
 
+  // the SQL of the queries above, also used by the query plan test
+
+  static String idsSql(String table, String orderBy) {
+    return "SELECT " + SQLiteHelper.C_ID + " FROM " + table + " ORDER BY "
+        + orderBy;
+  }
+
+  static String querySql(String table, String column) {
+    return "SELECT " + SQLiteHelper.C_ID + " FROM " + table + " WHERE "
+        + column + " = ? ORDER BY " + NEWEST_FIRST;
+  }
+
+  // args: value, before ID, limit
+  static String queryPageSql(String table, String column) {
+    return "SELECT " + SQLiteHelper.C_ID + " FROM " + table + " WHERE "
+        + column + " = ? AND " + SQLiteHelper.C_ID + " < ? ORDER BY "
+        + NEWEST_FIRST + " LIMIT ?";
+  }
+
+  static String queryLongsSql(String table, String resultColumn,
+      String column) {
+    return "SELECT " + resultColumn + " FROM " + table + " WHERE " + column
+        + " = ?";
+  }
+
+  static String blobsSql(String table, String[] columns) {
+    return "SELECT " + join(columns) + " FROM " + table + " WHERE "
+        + SQLiteHelper.C_ID + " = ?";
+  }
+
+  // the IDs are part of the SQL, so that any number fits
+  static String loadRowsSql(String table, String[] columns, List<Long> ids) {
+    StringBuilder sb = new StringBuilder("SELECT " + SQLiteHelper.C_ID + ", "
+        + join(columns) + " FROM " + table + " WHERE " + SQLiteHelper.C_ID
+        + " IN (");
+    for (int i = 0; i < ids.size(); i++) {
+      if (i > 0) {
+        sb.append(',');
+      }
+      sb.append(ids.get(i).longValue());
+    }
+    sb.append(')');
+    return sb.toString();
+  }
+
+  // args: the values of the columns, then the arguments of the where clause
+  static String updateWhereSql(String table, String[] columns,
+      String whereClause) {
+    StringBuilder sb = new StringBuilder("UPDATE " + table + " SET ");
+    for (int i = 0; i < columns.length; i++) {
+      if (i > 0) {
+        sb.append(", ");
+      }
+      sb.append(columns[i] + " = ?");
+    }
+    sb.append(" WHERE " + whereClause);
+    return sb.toString();
+  }
+
+  static String deleteWhereSql(String table, String whereClause) {
+    return "DELETE FROM " + table + " WHERE " + whereClause;
+  }
+
+  private static String join(String[] columns) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < columns.length; i++) {
+      if (i > 0) {
+        sb.append(", ");
+      }
+      sb.append(columns[i]);
+    }
+    return sb.toString();
+  }
+
+  private static void bind(SQLiteStatement statement, int index, Object value) {
+    if (value instanceof Long) {
+      statement.bindLong(index, ((Long) value).longValue());
+    } else if (value instanceof byte[]) {
+      statement.bindBlob(index, (byte[]) value);
+    } else if (value == null) {
+      statement.bindNull(index);
+    } else {
+      statement.bindString(index, value.toString());
+    }
+  }
+
+  /**
+   * A row that is created or deleted in the background.
+   */
+  private static class RowOp {
+    final String table;
+    final long id;
+    final boolean delete;
+
+    RowOp(String table, long id, boolean delete) {
+      this.table = table;
+      this.id = id;
+      this.delete = delete;
+    }
+  }
+
   /**
    * A simple updater thread that does writes to the database in the background.
    * "Batches up" writes to the same location, so that only the last write is
-   * executed. Writes are generally executed only after a time of WAIT_TIME.
+   * executed. Pending writes are flushed when the oldest of them is MAX_AGE old,
+   * when there are MAX_DIRTY of them, or when a flush is requested explicitly,
+   * whichever comes first. Each flush is one transaction: first the rows are
+   * created and deleted in order, then all changed columns of a row are written
+   * by one UPDATE.
    */
   private class DBUpdater extends Thread {
-    private Map<ColId, String> toUpdate = new ConcurrentHashMap<ColId, String>();
-    private static final long WAIT_TIME = 10 * 1000; // 10s
-    private long lastWrite = 0;
+    private static final long MAX_AGE = 10 * 1000; // 10s
+    private static final int MAX_DIRTY = 200;
+
+    // all of the following are guarded by this
+    private List<RowOp> rowOps = new ArrayList<RowOp>();
+    // when the oldest pending write was posted, 0 if there is none
+    private long firstDirty = 0;
+    private boolean flushRequested = false;
+    private long requestedGeneration = 0;
+    private long flushedGeneration = 0;
+    // the last generation whose flush failed, and why
+    private long failedGeneration = 0;
+    private RuntimeException failure;
+
+    DBUpdater() {
+      super("DBUpdater");
+    }
 
     @Override
     public void run() {
       while (true) {
+        long generation;
         try {
-          synchronized (this) {
-            this.wait();
-          }
+          generation = awaitFlush();
         } catch (InterruptedException e) {
           e.printStackTrace();
+          continue;
         }
-        long diff = System.currentTimeMillis() - lastWrite;
-        if (diff < WAIT_TIME) {
-          try {
-            Thread.sleep(WAIT_TIME - diff);
-          } catch (InterruptedException e) {
-            e.printStackTrace();
+        try {
+          while (getPendingCount() > 0) {
+            flushOnce();
+          }
+          checkpoint();
+          synchronized (this) {
+            flushedGeneration = Math.max(flushedGeneration, generation);
+          }
+        } catch (RuntimeException e) {
+          // e.g. an SQLException: keep the pending writes, try again after
+          // MAX_AGE. This thread has to keep running, and the waiters have to
+          // learn that their writes aren't in the database.
+          Log.e("Database", "Flush failed", e);
+          synchronized (this) {
+            firstDirty = System.currentTimeMillis();
+            failedGeneration = Math.max(failedGeneration, generation);
+            failure = e;
+          }
+        } finally {
+          synchronized (this) {
+            this.notifyAll();
           }
         }
-        lastWrite = System.currentTimeMillis();
-        while (!toUpdate.isEmpty()) {
-          Iterator<Entry<ColId, String>> it = toUpdate.entrySet().iterator();
-          while (it.hasNext()) {
-            Entry<ColId, String> entry = it.next();
-            ColId id = entry.getKey();
-            ContentValues cvs = new ContentValues();
-            cvs.put(id.column, entry.getValue());
-            database.update(id.table, cvs, SQLiteHelper.C_ID + " = " + id.id,
-                null);
-            it.remove();
+      }
+    }
+
+    /**
+     * Blocks until the next flush is due.
+     * 
+     * @return the generation of flush requests that the flush satisfies
+     */
+    private synchronized long awaitFlush() throws InterruptedException {
+      int dirty;
+      while (!flushRequested && (dirty = getPendingCount()) < MAX_DIRTY) {
+        if (dirty == 0) {
+          firstDirty = 0;
+          this.wait();
+        } else {
+          long remaining = firstDirty + MAX_AGE - System.currentTimeMillis();
+          if (remaining <= 0) {
+            break;
           }
+          this.wait(remaining);
         }
       }
+      flushRequested = false;
+      firstDirty = 0;
+      return requestedGeneration;
+    }
+
+    private synchronized int getPendingCount() {
+      return rowOps.size() + cache.getDirtyCount();
     }
 
     /**
-     * Request a database update from this thread.
+     * Queues the creation of a row. Its values are written like updates.
      */
-    void postUpdate(ColId id, String value) {
-      toUpdate.put(id, value);
+    synchronized void postCreate(String table, long id, String[] columns,
+        Object[] values) {
+      // older updates of the row are obsolete
+      cache.removeRow(table, id);
+      rowOps.add(new RowOp(table, id, false));
+      int dirty = 0;
+      for (int i = 0; i < columns.length; i++) {
+        dirty = cache.putDirty(table, id, columns[i], values[i]);
+      }
+      postUpdate(dirty + rowOps.size());
+    }
+
+    /**
+     * Queues the deletion of a row.
+     */
+    synchronized void postDelete(String table, long id) {
+      cache.removeRow(table, id);
+      rowOps.add(new RowOp(table, id, true));
+      postUpdate(getPendingCount());
+    }
+
+    /**
+     * Tells this thread that a write has been put into the cache.
+     * 
+     * @param dirty
+     *          the number of pending writes
+     */
+    synchronized void postUpdate(int dirty) {
+      if (firstDirty == 0) {
+        firstDirty = System.currentTimeMillis();
+        // wake up so the deadline is taken into account
+        this.notifyAll();
+      } else if (dirty >= MAX_DIRTY) {
+        this.notifyAll();
+      }
+    }
+
+    /**
+     * Requests a flush without waiting for it.
+     * 
+     * @return the generation to wait for
+     */
+    synchronized long requestFlush() {
+      requestedGeneration++;
+      flushRequested = true;
+      this.notifyAll();
+      return requestedGeneration;
+    }
+
+    /**
+     * Requests a flush and waits until it is done.
+     * 
+     * @throws IllegalStateException
+     *           if the flush failed
+     */
+    void flushAndWait() {
+      if (Thread.currentThread() == this) {
+        return;
+      }
+      long generation = requestFlush();
+      synchronized (this) {
+        while (flushedGeneration < generation) {
+          if (failedGeneration >= generation) {
+            throw new IllegalStateException("Pending writes weren't flushed",
+                failure);
+          }
+          try {
+            this.wait();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+          }
+        }
+      }
+    }
+
+    /**
+     * Copies the WAL back into the database. Flushes come at most every
+     * MAX_AGE and only add a few pages, so doing this right after one keeps
+     * the WAL short without making a commit pay for it. The checkpoint is
+     * passive: it doesn't wait for readers, and pages they still need are
+     * copied next time.
+     */
+    private void checkpoint() {
+      // busy, pages in the WAL, pages checkpointed
+      long[] result = pragma("wal_checkpoint(PASSIVE)");
+      if (result != null && result[2] < result[1]) {
+        Log.d("Database", "Checkpointed " + result[2] + " of " + result[1]
+            + " WAL pages");
+      }
+    }
+
+    /**
+     * Writes all pending updates in one transaction.
+     */
+    private void flushOnce() {
+      long start = System.currentTimeMillis();
+      List<RowOp> ops;
+      List<RowCache.DirtyRow> rows;
+      // take both at once, so that no update misses the creation of its row
       synchronized (this) {
-        this.notify();
+        ops = rowOps;
+        rowOps = new ArrayList<RowOp>();
+        rows = cache.getDirtyRows();
+      }
+      // rows changed according to SQLite, and statements executed
+      int changed = 0;
+      int executed = 0;
+      database.beginTransaction();
+      try {
+        for (RowOp op : ops) {
+          SQLiteStatement statement = op.delete ? statements.delete(op.table)
+              : statements.insertOrReplace(op.table);
+          synchronized (statement) {
+            statement.bindLong(1, op.id);
+            changed += statement.executeUpdateDelete();
+          }
+          executed++;
+        }
+        // rows with the same set of changed columns share a statement
+        for (RowCache.DirtyRow row : rows) {
+          SQLiteStatement statement = statements.update(row.table, row.columns);
+          synchronized (statement) {
+            for (int i = 0; i < row.values.length; i++) {
+              bind(statement, i + 1, row.values[i]);
+            }
+            statement.bindLong(row.values.length + 1, row.id);
+            changed += statement.executeUpdateDelete();
+          }
+          executed++;
+        }
+        database.setTransactionSuccessful();
+      } catch (RuntimeException e) {
+        // try the creations and deletions again with the next flush
+        synchronized (this) {
+          ops.addAll(rowOps);
+          rowOps = ops;
+        }
+        throw e;
+      } finally {
+        database.endTransaction();
       }
+      // newer values stay pending for the next flush
+      cache.markClean(rows);
+      long duration = System.currentTimeMillis() - start;
+      flushStats = flushStats.add(changed, executed, duration);
+      Log.d("Database", "Flushed " + changed + " rows with " + executed
+          + " statements in " + duration + "ms (" + flushStats + ")");
     }
   }
 }
@@ -0,0 +1,121 @@
+/*******************************************************************************
+ * Copyright 2012 Crazywater
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package de.knufficast.logic.db;
+
+import java.util.List;
+
+import android.util.Log;
+import de.knufficast.App;
+import de.knufficast.logic.db.DBEpisode.DownloadState;
+
+/**
+ * Deletes old episodes according to the configuration (see
+ * {@link Configuration#getKeepEpisodes} and {@link Configuration#getKeepDays}),
+ * so that the database doesn't grow forever. Episodes that are enqueued or
+ * have (part of) a download are never deleted. The fingerprints of deleted
+ * episodes are kept until the feed doesn't list them anymore, so that
+ * refreshing the feed doesn't add them again (see {@link XMLToDBWriter}). Only
+ * the most recently deleted ones are kept for each feed.
+ * 
+ * @author crazywater
+ * 
+ */
+public class EpisodeRetention {
+  private static final long DAY = 24 * 60 * 60 * 1000;
+  // unused database pages (usually 4K) before the file is compacted
+  private static final int MAX_FREE_PAGES = 256;
+  // deleted episodes per feed that are remembered, see XMLToDBWriter
+  private static final int MAX_REMEMBERED = 1000;
+
+  private static final String EPISODES = SQLiteHelper.TABLE_EPISODES;
+  private static final String ID = SQLiteHelper.C_ID;
+  // episodes of a feed (arg 1) that are older than the n-th newest (arg 2) or
+  // were added before a time (arg 3), and that nothing else refers to
+  static final String WHERE_EXPIRED = SQLiteHelper.C_EP_FEED_ID
+      + " = ? AND (" + ID + " < ? OR " + SQLiteHelper.C_EP_ADDED + " < ?) AND "
+      + "NOT EXISTS (SELECT 1 FROM " + SQLiteHelper.TABLE_QUEUE + " WHERE "
+      + SQLiteHelper.TABLE_QUEUE + "." + ID + " = " + EPISODES + "." + ID
+      + ") AND (SELECT " + SQLiteHelper.C_EP_DOWNLOAD_STATE + " FROM "
+      + SQLiteHelper.TABLE_EPISODE_STATE + " WHERE "
+      + SQLiteHelper.TABLE_EPISODE_STATE + "." + ID + " = " + EPISODES + "."
+      + ID + ") = " + DownloadState.NONE.ordinal();
+  // remembers the expired episodes, so that refreshes don't add them again
+  static final String REMEMBER_EXPIRED = "INSERT OR IGNORE INTO "
+      + SQLiteHelper.TABLE_DELETED_EPISODES + " (" + SQLiteHelper.C_EP_FEED_ID
+      + ", " + SQLiteHelper.C_EP_FINGERPRINT + ") SELECT "
+      + SQLiteHelper.C_EP_FEED_ID + ", " + SQLiteHelper.C_EP_FINGERPRINT
+      + " FROM " + EPISODES + " WHERE " + WHERE_EXPIRED;
+  // forgets all but the n (arg 3) most recently deleted episodes of a feed
+  // (args 1 and 2)
+  static final String FORGET_OLDEST = "DELETE FROM "
+      + SQLiteHelper.TABLE_DELETED_EPISODES + " WHERE "
+      + SQLiteHelper.C_EP_FEED_ID + " = ? AND rowid <= (SELECT rowid FROM "
+      + SQLiteHelper.TABLE_DELETED_EPISODES + " WHERE "
+      + SQLiteHelper.C_EP_FEED_ID + " = ? ORDER BY rowid DESC LIMIT 1 OFFSET ?)";
+
+  private final Database db = App.get().getDB();
+
+  /**
+   * Deletes the expired episodes of the feeds with one statement per feed. If
+   * any were deleted, compacts the database file if enough space has become
+   * free. Blocks, so don't call this on the UI thread.
+   * 
+   * @return the number of deleted episodes
+   */
+  public int apply(List<DBFeed> feeds) {
+    Configuration config = App.get().getConfiguration();
+    int keepEpisodes = config.getKeepEpisodes();
+    int keepDays = config.getKeepDays();
+    int deleted = 0;
+    if (keepEpisodes > 0 || keepDays > 0) {
+      long minAdded = keepDays > 0 ? System.currentTimeMillis() - keepDays
+          * DAY : 0;
+      for (DBFeed feed : feeds) {
+        deleted += expire(feed, keepEpisodes, minAdded);
+      }
+      if (deleted > 0) {
+        // their state and notes are deleted by the foreign keys
+        Log.d("EpisodeRetention", "Deleted " + deleted + " episodes");
+        db.compact(MAX_FREE_PAGES);
+      }
+    }
+    return deleted;
+  }
+
+  private int expire(DBFeed feed, int keepEpisodes, long minAdded) {
+    String feedId = String.valueOf(feed.getId());
+    // the oldest episode to keep by count, 0 if there aren't enough
+    long minId = 0;
+    if (keepEpisodes > 0) {
+      long[] newest = db.queryPage(EPISODES, SQLiteHelper.C_EP_FEED_ID,
+          feedId, Long.MAX_VALUE, keepEpisodes);
+      if (newest.length == keepEpisodes) {
+        minId = newest[keepEpisodes - 1];
+      }
+    }
+    if (minId == 0 && minAdded == 0) {
+      return 0;
+    }
+    String[] args = { feedId, String.valueOf(minId), String.valueOf(minAdded) };
+    int deleted = db.deleteWhere(EPISODES, WHERE_EXPIRED, args,
+        REMEMBER_EXPIRED);
+    if (deleted > 0) {
+      // the oldest ones are the least likely to be listed by the feed
+      db.execute(FORGET_OLDEST, feedId, feedId, (long) MAX_REMEMBERED);
+    }
+    return deleted;
+  }
+}
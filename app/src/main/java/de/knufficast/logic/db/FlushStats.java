@@ -0,0 +1,91 @@
+/*******************************************************************************
+ * Copyright 2012 Crazywater
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package de.knufficast.logic.db;
+
+/**
+ * Statistics about the write-behind flushes of a {@link Database}. Immutable;
+ * every flush produces a new object.
+ * 
+ * @author crazywater
+ * 
+ */
+public class FlushStats {
+  private final long flushes;
+  private final long rowsWritten;
+  private final long statements;
+  private final long lastDurationMillis;
+  private final long totalDurationMillis;
+
+  FlushStats(long flushes, long rowsWritten, long statements,
+      long lastDurationMillis, long totalDurationMillis) {
+    this.flushes = flushes;
+    this.rowsWritten = rowsWritten;
+    this.statements = statements;
+    this.lastDurationMillis = lastDurationMillis;
+    this.totalDurationMillis = totalDurationMillis;
+  }
+
+  /**
+   * Returns the statistics with one more flush added.
+   */
+  FlushStats add(long rows, long statements, long durationMillis) {
+    return new FlushStats(flushes + 1, rowsWritten + rows, this.statements
+        + statements, durationMillis, totalDurationMillis + durationMillis);
+  }
+
+  /**
+   * How many flushes (= transactions) have been done.
+   */
+  public long getFlushes() {
+    return flushes;
+  }
+
+  /**
+   * How many rows have been created, changed or deleted in total, as reported
+   * by SQLite. Writes to rows that are gone by then don't count.
+   */
+  public long getRowsWritten() {
+    return rowsWritten;
+  }
+
+  /**
+   * How many SQL statements have been executed in total.
+   */
+  public long getStatements() {
+    return statements;
+  }
+
+  /**
+   * How long the last flush took, in milliseconds.
+   */
+  public long getLastDurationMillis() {
+    return lastDurationMillis;
+  }
+
+  /**
+   * How long all flushes took together, in milliseconds.
+   */
+  public long getTotalDurationMillis() {
+    return totalDurationMillis;
+  }
+
+  @Override
+  public String toString() {
+    return flushes + " flushes, " + rowsWritten + " rows, " + statements
+        + " statements, last " + lastDurationMillis + "ms, total "
+        + totalDurationMillis + "ms";
+  }
+}
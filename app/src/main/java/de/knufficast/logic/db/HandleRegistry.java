@@ -0,0 +1,107 @@
+/*******************************************************************************
+ * Copyright 2012 Crazywater
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package de.knufficast.logic.db;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import de.knufficast.util.LongIntMap;
+
+/**
+ * Keeps one handle (like {@link DBEpisode}) per row ID, as long as the handle
+ * is used somewhere. Handles that are no longer referenced are garbage
+ * collected and created again when needed. Looking up a handle that exists
+ * doesn't allocate.
+ * 
+ * @author crazywater
+ * 
+ * @param <T>
+ *          the type of the handles
+ */
+abstract class HandleRegistry<T> {
+  private static final int MISSING = -1;
+
+  // row ID -> index of its reference in references
+  private final LongIntMap indexes = new LongIntMap(MISSING);
+  private final List<IdReference<T>> references = new ArrayList<IdReference<T>>();
+  // indexes in references that can be used again
+  private int[] free = new int[16];
+  private int freeCount = 0;
+  private final ReferenceQueue<T> collected = new ReferenceQueue<T>();
+
+  /**
+   * Returns the handle for the row ID, creating it if necessary.
+   */
+  synchronized T get(long id) {
+    removeCollected();
+    int index = indexes.get(id);
+    if (index == MISSING) {
+      index = allocate();
+      indexes.put(id, index);
+    } else {
+      T handle = references.get(index).get();
+      if (handle != null) {
+        return handle;
+      }
+    }
+    T handle = create(id);
+    references.set(index, new IdReference<T>(id, index, handle, collected));
+    return handle;
+  }
+
+  /**
+   * Creates a new handle for the row ID.
+   */
+  protected abstract T create(long id);
+
+  private int allocate() {
+    if (freeCount > 0) {
+      return free[--freeCount];
+    }
+    references.add(null);
+    return references.size() - 1;
+  }
+
+  private void removeCollected() {
+    Object reference;
+    while ((reference = collected.poll()) != null) {
+      IdReference<?> casted = (IdReference<?>) reference;
+      // the ID might have a new handle already
+      if (references.get(casted.index) == casted) {
+        references.set(casted.index, null);
+        indexes.remove(casted.id);
+        if (freeCount == free.length) {
+          free = Arrays.copyOf(free, free.length * 2);
+        }
+        free[freeCount++] = casted.index;
+      }
+    }
+  }
+
+  private static class IdReference<T> extends WeakReference<T> {
+    final long id;
+    final int index;
+
+    IdReference(long id, int index, T handle, ReferenceQueue<T> queue) {
+      super(handle, queue);
+      this.id = id;
+      this.index = index;
+    }
+  }
+}
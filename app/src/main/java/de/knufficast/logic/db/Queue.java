@@ -16,10 +16,10 @@
 package de.knufficast.logic.db;
 
 import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.LinkedHashSet;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
 
 import de.knufficast.App;
 import de.knufficast.events.EventBus;
@@ -28,23 +28,36 @@ import de.knufficast.events.QueuePoppedEvent;
 import de.knufficast.events.QueueRemovedEvent;
 
 /**
- * Represents the play queue.
+ * Represents the play queue. Every episode in the queue has a row in the queue
+ * table with its position. Positions are spaced out, so that adding, removing
+ * or moving an episode only writes the row of that episode.
  * 
  * @author crazywater
  */
 public class Queue {
-  private Set<DBEpisode> queue = new LinkedHashSet<DBEpisode>();
+  private static final String TABLE = SQLiteHelper.TABLE_QUEUE;
+  static final String POSITION = SQLiteHelper.C_QUEUE_POSITION;
+  // distance between the positions of neighbors after renumbering
+  private static final long GAP = 1 << 16;
+
+  private final List<DBEpisode> queue = new ArrayList<DBEpisode>();
+  private final Map<DBEpisode, Long> positions = new HashMap<DBEpisode, Long>();
 
   /**
    * Adds a new episode to the queue. Fires a {@link QueueChangedEvent} as a
    * side-effect.
    */
   public synchronized void add(DBEpisode ep) {
-    if (queue.contains(ep)) {
+    if (positions.containsKey(ep)) {
       return;
     }
     boolean topChanged = queue.isEmpty();
+    long position = topChanged ? 0 : positionOf(queue.size() - 1) + GAP;
     queue.add(ep);
+    positions.put(ep, position);
+    Object[] values = { position };
+    String[] columns = { POSITION };
+    getDB().createLater(TABLE, ep.getId(), columns, values);
     App.get().getEventBus().fireEvent(new QueueChangedEvent(topChanged));
   }
 
@@ -53,26 +66,29 @@ public class Queue {
    * May fire a {@link QueueChangedEvent} as a side-effect.
    */
   public synchronized void move(DBEpisode ep, int to) {
-    Set<DBEpisode> newQueue = new LinkedHashSet<DBEpisode>();
-    Iterator<DBEpisode> it = queue.iterator();
-    for (int i = 0; i < to;) {
-      DBEpisode next = it.next();
-      if (next != ep) {
-        newQueue.add(next);
-        i++;
-      }
+    if (!positions.containsKey(ep)) {
+      return;
     }
-    newQueue.add(ep);
-    while (it.hasNext()) {
-      DBEpisode next = it.next();
-      if (next != ep) {
-        newQueue.add(next);
-      }
+    DBEpisode oldTop = queue.get(0);
+    queue.remove(ep);
+    queue.add(to, ep);
+    Long before = to > 0 ? positionOf(to - 1) : null;
+    Long after = to < queue.size() - 1 ? positionOf(to + 1) : null;
+    if (before == null && after == null) {
+      setPosition(ep, 0);
+    } else if (before == null) {
+      setPosition(ep, after - GAP);
+    } else if (after == null) {
+      setPosition(ep, before + GAP);
+    } else if (after - before > 1) {
+      setPosition(ep, before + (after - before) / 2);
+    } else {
+      // no room left between the neighbors
+      renumber();
     }
-    DBEpisode oldTop = queue.iterator().next();
-    queue = newQueue;
-    DBEpisode newTop = queue.iterator().next();
-    App.get().getEventBus().fireEvent(new QueueChangedEvent(oldTop != newTop));
+    DBEpisode newTop = queue.get(0);
+    App.get().getEventBus()
+        .fireEvent(new QueueChangedEvent(!oldTop.equals(newTop)));
   }
 
   /**
@@ -80,15 +96,42 @@ public class Queue {
    * a side-effect.
    */
   public synchronized void remove(DBEpisode ep) {
-    boolean topChanged = ep == queue.iterator().next();
-    if (!queue.contains(ep)) {
+    if (!positions.containsKey(ep)) {
       return;
     }
+    boolean topChanged = ep.equals(queue.get(0));
     queue.remove(ep);
+    positions.remove(ep);
+    getDB().deleteLater(TABLE, ep.getId());
     App.get().getEventBus().fireEvent(new QueueChangedEvent(topChanged));
     App.get().getEventBus().fireEvent(new QueueRemovedEvent(ep));
   }
 
+  /**
+   * Removes all of the episodes that are in the queue at once. Fires a single
+   * {@link QueueChangedEvent}, but no {@link QueueRemovedEvent}s, so the
+   * downloads of the episodes are left to the caller.
+   */
+  public synchronized void removeAll(Collection<DBEpisode> episodes) {
+    if (queue.isEmpty()) {
+      return;
+    }
+    DBEpisode oldTop = queue.get(0);
+    boolean removed = false;
+    for (DBEpisode ep : episodes) {
+      if (positions.remove(ep) != null) {
+        getDB().deleteLater(TABLE, ep.getId());
+        removed = true;
+      }
+    }
+    if (!removed) {
+      return;
+    }
+    queue.retainAll(positions.keySet());
+    boolean topChanged = queue.isEmpty() || !oldTop.equals(queue.get(0));
+    App.get().getEventBus().fireEvent(new QueueChangedEvent(topChanged));
+  }
+
   /**
    * Returns the first element in the queue or null if the queue is empty.
    */
@@ -96,11 +139,11 @@ public class Queue {
     if (queue.isEmpty()) {
       return null;
     }
-    return queue.iterator().next();
+    return queue.get(0);
   }
 
-  public boolean contains(DBEpisode episode) {
-    return queue.contains(episode);
+  public synchronized boolean contains(DBEpisode episode) {
+    return positions.containsKey(episode);
   }
 
   /**
@@ -120,8 +163,9 @@ public class Queue {
     if (queue.isEmpty()) {
       return null;
     }
-    DBEpisode head = queue.iterator().next();
-    queue.remove(head);
+    DBEpisode head = queue.remove(0);
+    positions.remove(head);
+    getDB().deleteLater(TABLE, head.getId());
     EventBus eventBus = App.get().getEventBus();
     eventBus.fireEvent(new QueueChangedEvent(true));
     eventBus.fireEvent(new QueueRemovedEvent(head));
@@ -130,22 +174,13 @@ public class Queue {
   }
 
   /**
-   * Moves the top element of the queue to the bottom.
+   * Moves the bottom element of the queue to the top.
    */
   public synchronized void rotateDownward() {
     if (queue.size() > 1) {
-      Set<DBEpisode> newQueue = new LinkedHashSet<DBEpisode>();
-      Iterator<DBEpisode> it = queue.iterator();
-      DBEpisode bottom = it.next();
-      while (it.hasNext()) {
-        bottom = it.next();
-      }
-      newQueue.add(bottom);
-      it = queue.iterator();
-      while (it.hasNext()) {
-        newQueue.add(it.next());
-      }
-      queue = newQueue;
+      DBEpisode bottom = queue.remove(queue.size() - 1);
+      queue.add(0, bottom);
+      setPosition(bottom, positionOf(1) - GAP);
       App.get().getEventBus().fireEvent(new QueueChangedEvent(true));
     }
   }
@@ -155,27 +190,68 @@ public class Queue {
    */
   public synchronized void rotateUpward() {
     if (queue.size() > 1) {
-      Set<DBEpisode> newQueue = new LinkedHashSet<DBEpisode>();
-      Iterator<DBEpisode> it = queue.iterator();
-      DBEpisode head = it.next();
-      while (it.hasNext()) {
-        newQueue.add(it.next());
-      }
-      newQueue.add(head);
-      queue = newQueue;
+      DBEpisode head = queue.remove(0);
+      queue.add(head);
+      setPosition(head, positionOf(queue.size() - 2) + GAP);
       App.get().getEventBus().fireEvent(new QueueChangedEvent(true));
     }
   }
 
-  public boolean isEmpty() {
+  public synchronized boolean isEmpty() {
     return queue.isEmpty();
   }
 
+  /**
+   * Reads the queue from the database.
+   */
+  public synchronized void load() {
+    queue.clear();
+    positions.clear();
+    Database db = getDB();
+    long[] ids = db.getIds(TABLE, POSITION);
+    List<Long> idList = new ArrayList<Long>(ids.length);
+    for (long id : ids) {
+      idList.add(id);
+    }
+    db.loadRows(TABLE, idList);
+    for (long id : ids) {
+      DBEpisode ep = DBEpisode.get(id);
+      queue.add(ep);
+      positions.put(ep, db.getLong(TABLE, id, POSITION));
+    }
+  }
+
+  /**
+   * Replaces the queue with the episodes in a comma-separated string of
+   * episode IDs, the format in which the queue used to be stored.
+   */
+  public synchronized void importString(String string) {
+    for (DBEpisode ep : queue) {
+      getDB().deleteLater(TABLE, ep.getId());
+    }
+    queue.clear();
+    positions.clear();
+    String[] ids = string.split(",");
+    for (String idStr : ids) {
+      if (!"".equals(idStr)) {
+        long id = Long.valueOf(idStr).longValue();
+        DBEpisode ep = DBEpisode.get(id);
+        if (!positions.containsKey(ep)) {
+          Object[] values = { queue.size() * GAP };
+          String[] columns = { POSITION };
+          getDB().createLater(TABLE, id, columns, values);
+          positions.put(ep, queue.size() * GAP);
+          queue.add(ep);
+        }
+      }
+    }
+  }
+
   /**
    * Transforms the queue into a comma-separated string of Episode IDs.
    */
   @Override
-  public String toString() {
+  public synchronized String toString() {
     StringBuilder sb = new StringBuilder();
     for (DBEpisode ep : queue) {
       sb.append(ep.getId());
@@ -184,17 +260,25 @@ public class Queue {
     return sb.toString();
   }
 
+  private long positionOf(int index) {
+    return positions.get(queue.get(index));
+  }
+
+  private void setPosition(DBEpisode ep, long position) {
+    positions.put(ep, position);
+    getDB().putLong(TABLE, ep.getId(), POSITION, position);
+  }
+
   /**
-   * Reads the queue from a comma-separated string of Episode IDs.
+   * Spaces out the positions of all episodes evenly again.
    */
-  public void fromString(String string) {
-    queue.clear();
-    String[] ids = string.split(",");
-    for (String idStr : ids) {
-      if (!"".equals(idStr)) {
-        long id = Long.valueOf(idStr).longValue();
-        queue.add(new DBEpisode(id));
-      }
+  private void renumber() {
+    for (int i = 0; i < queue.size(); i++) {
+      setPosition(queue.get(i), i * GAP);
     }
   }
+
+  private Database getDB() {
+    return App.get().getDB();
+  }
 }
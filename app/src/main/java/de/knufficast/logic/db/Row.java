@@ -0,0 +1,89 @@
+/*******************************************************************************
+ * Copyright 2012 Crazywater
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package de.knufficast.logic.db;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An immutable snapshot of some columns of a database row, as delivered by
+ * {@link Database#readAsync}. Reading from it never touches the database, so
+ * it is safe to use on the UI thread. It doesn't see later changes to the
+ * row.
+ * 
+ * @author crazywater
+ * 
+ */
+public class Row {
+  private final long id;
+  private final Map<String, Object> values;
+
+  Row(long id, Map<String, Object> values) {
+    this.id = id;
+    this.values = Collections.unmodifiableMap(values);
+  }
+
+  public long getId() {
+    return id;
+  }
+
+  /**
+   * Whether this snapshot contains the column.
+   */
+  public boolean has(String column) {
+    return values.containsKey(column);
+  }
+
+  /**
+   * Gets a value as a string, or "" if this snapshot doesn't contain it.
+   */
+  public String getString(String column) {
+    Object value = values.get(column);
+    return value == null ? "" : value.toString();
+  }
+
+  /**
+   * Gets the value of an INTEGER column, or 0 if this snapshot doesn't
+   * contain it.
+   */
+  public long getLong(String column) {
+    Object value = values.get(column);
+    if (value instanceof Long) {
+      return ((Long) value).longValue();
+    } else if (value == null || "".equals(value)) {
+      return 0;
+    }
+    return Long.parseLong(value.toString());
+  }
+
+  /**
+   * Gets the value of an INTEGER column as an int.
+   */
+  public int getInt(String column) {
+    return (int) getLong(column);
+  }
+
+  /**
+   * Returns a snapshot with the columns of both rows, e.g. of an episode and
+   * its state. Columns of the other row win.
+   */
+  public Row with(Row other) {
+    Map<String, Object> merged = new HashMap<String, Object>(values);
+    merged.putAll(other.values);
+    return new Row(id, merged);
+  }
+}
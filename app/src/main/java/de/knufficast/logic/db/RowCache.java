@@ -0,0 +1,530 @@
+/*******************************************************************************
+ * Copyright 2012 Crazywater
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package de.knufficast.logic.db;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import de.knufficast.util.LongIntMap;
+
+/**
+ * The in-memory copy of database rows that {@link Database} works on: a
+ * bounded LRU read cache and the pending writes in one structure. Each table
+ * keeps its rows in flat arrays, indexed by a slot that is looked up from the
+ * row id and by the position of the column, so that lookups don't allocate.
+ * Rows with pending writes are never evicted. Thread-safe.
+ * 
+ * @author crazywater
+ * 
+ */
+class RowCache {
+  private static final int NONE = -1;
+  // handles in the LRU list are slot << TABLE_BITS | table index
+  private static final int TABLE_BITS = 4;
+  private static final int TABLE_MASK = (1 << TABLE_BITS) - 1;
+  // rough memory use of a row and of a single value, without string contents
+  private static final int ROW_OVERHEAD = 48;
+  private static final int VALUE_OVERHEAD = 24;
+
+  private final Table[] tables = new Table[1 << TABLE_BITS];
+  private int tableCount = 0;
+  // clean rows, least recently used first
+  private int lruHead = NONE;
+  private int lruTail = NONE;
+  private long budget;
+  private long size = 0;
+  private int dirtyCount = 0;
+
+  RowCache(long budget) {
+    this.budget = budget;
+  }
+
+  /**
+   * Returns the cached or pending value, or null if it has to be read from the
+   * database. Counts as a hit or miss.
+   */
+  synchronized Object get(String table, long id, String column) {
+    Table t = table(table);
+    int col = t.column(column);
+    int slot = t.slots.get(id);
+    Object value = slot == NONE ? null : t.values[slot * t.width + col];
+    if (value == null) {
+      t.misses[col]++;
+    } else {
+      t.hits[col]++;
+      touch(t, slot);
+    }
+    return value;
+  }
+
+  /**
+   * Whether all of the columns of the row are in memory.
+   */
+  synchronized boolean containsAll(String table, long id, String[] columns) {
+    Table t = table(table);
+    int slot = t.slots.get(id);
+    if (slot == NONE) {
+      return false;
+    }
+    for (String column : columns) {
+      if (t.values[slot * t.width + t.column(column)] == null) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Puts a value that was read from the database. Never overwrites a value in
+   * memory, because that one might be a pending write which is newer than what
+   * is in the database.
+   * 
+   * @return the value that is in memory now, or "" for null
+   */
+  synchronized Object fill(String table, long id, String column, Object value) {
+    Table t = table(table);
+    int col = t.column(column);
+    int slot = t.slots.get(id);
+    if (slot != NONE && t.values[slot * t.width + col] != null) {
+      return t.values[slot * t.width + col];
+    }
+    if (value == null) {
+      return "";
+    }
+    if (slot == NONE) {
+      slot = t.allocate(id);
+      size += t.bytes[slot];
+      linkLast(handle(t, slot));
+    }
+    setValue(t, slot, col, value);
+    trim();
+    return value;
+  }
+
+  /**
+   * Puts a value that has to be written to the database.
+   * 
+   * @return the number of pending writes
+   */
+  synchronized int putDirty(String table, long id, String column, Object value) {
+    Table t = table(table);
+    int col = t.column(column);
+    int slot = t.slots.get(id);
+    if (slot == NONE) {
+      slot = t.allocate(id);
+      size += t.bytes[slot];
+    } else if (t.dirty[slot] == 0) {
+      unlink(handle(t, slot));
+    }
+    long bit = 1L << col;
+    if ((t.dirty[slot] & bit) == 0) {
+      t.dirty[slot] |= bit;
+      dirtyCount++;
+    }
+    setValue(t, slot, col, value);
+    trim();
+    return dirtyCount;
+  }
+
+  /**
+   * Forgets a row, including its pending writes.
+   */
+  synchronized void removeRow(String table, long id) {
+    Table t = table(table);
+    int slot = t.slots.get(id);
+    if (slot != NONE) {
+      free(t, slot);
+    }
+  }
+
+  /**
+   * Removes a row from the cache unless it has pending writes.
+   */
+  synchronized void evictRow(String table, long id) {
+    Table t = table(table);
+    int slot = t.slots.get(id);
+    if (slot != NONE && t.dirty[slot] == 0) {
+      free(t, slot);
+    }
+  }
+
+  /**
+   * Removes the cached values of the columns in all rows of the table, e.g.
+   * because they have been changed in the database directly. Values with
+   * pending writes are kept.
+   * 
+   * @param columns
+   *          the columns, or null for all columns
+   */
+  synchronized void invalidate(String table, Collection<String> columns) {
+    Table t = find(table);
+    if (t == null) {
+      // nothing of it has been cached yet
+      return;
+    }
+    int[] cols;
+    if (columns == null) {
+      cols = new int[t.width];
+      for (int col = 0; col < t.width; col++) {
+        cols[col] = col;
+      }
+    } else {
+      cols = new int[columns.size()];
+      int i = 0;
+      for (String column : columns) {
+        cols[i++] = t.column(column);
+      }
+    }
+    for (int slot = 0; slot < t.used; slot++) {
+      if (t.bytes[slot] == 0) {
+        // free slot
+        continue;
+      }
+      boolean empty = true;
+      for (int col : cols) {
+        if ((t.dirty[slot] & (1L << col)) == 0) {
+          setValue(t, slot, col, null);
+        }
+      }
+      for (int col = 0; col < t.width; col++) {
+        empty &= t.values[slot * t.width + col] == null;
+      }
+      if (empty && t.dirty[slot] == 0) {
+        free(t, slot);
+      }
+    }
+  }
+
+  synchronized void setBudget(long budget) {
+    this.budget = budget;
+    trim();
+  }
+
+  synchronized int getDirtyCount() {
+    return dirtyCount;
+  }
+
+  synchronized List<CacheStats> getStats() {
+    List<CacheStats> result = new ArrayList<CacheStats>();
+    for (int i = 0; i < tableCount; i++) {
+      Table t = tables[i];
+      for (int col = 0; col < t.width; col++) {
+        if (t.hits[col] + t.misses[col] + t.evictions[col] > 0) {
+          result.add(new CacheStats(t.name, t.columns[col], t.hits[col],
+              t.misses[col], t.evictions[col]));
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Returns a copy of all pending writes, one entry per row.
+   */
+  synchronized List<DirtyRow> getDirtyRows() {
+    List<DirtyRow> result = new ArrayList<DirtyRow>();
+    for (int i = 0; i < tableCount; i++) {
+      Table t = tables[i];
+      for (int slot = 0; slot < t.used; slot++) {
+        long mask = t.dirty[slot];
+        if (mask == 0) {
+          continue;
+        }
+        int count = Long.bitCount(mask);
+        String[] columns = new String[count];
+        Object[] values = new Object[count];
+        int j = 0;
+        for (int col = 0; col < t.width; col++) {
+          if ((mask & (1L << col)) != 0) {
+            columns[j] = t.columns[col];
+            values[j] = t.values[slot * t.width + col];
+            j++;
+          }
+        }
+        result.add(new DirtyRow(t.name, t.ids[slot], columns, values));
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Marks writes as done. Values that have been changed again since
+   * {@link #getDirtyRows} stay pending.
+   */
+  synchronized void markClean(List<DirtyRow> rows) {
+    for (DirtyRow row : rows) {
+      Table t = table(row.table);
+      int slot = t.slots.get(row.id);
+      if (slot == NONE || t.dirty[slot] == 0) {
+        continue;
+      }
+      for (int i = 0; i < row.columns.length; i++) {
+        int col = t.column(row.columns[i]);
+        long bit = 1L << col;
+        if ((t.dirty[slot] & bit) != 0
+            && t.values[slot * t.width + col] == row.values[i]) {
+          t.dirty[slot] &= ~bit;
+          dirtyCount--;
+        }
+      }
+      if (t.dirty[slot] == 0) {
+        linkLast(handle(t, slot));
+      }
+    }
+    trim();
+  }
+
+  private Table table(String name) {
+    Table t = find(name);
+    if (t != null) {
+      return t;
+    }
+    if (tableCount == tables.length) {
+      throw new IllegalStateException("Too many tables");
+    }
+    t = new Table(tableCount, name, SQLiteHelper.getColumns(name));
+    tables[tableCount++] = t;
+    return t;
+  }
+
+  /**
+   * Returns the table, or null if nothing of it has been cached yet.
+   */
+  private Table find(String name) {
+    // table names are constants, so comparing references is usually enough
+    for (int i = 0; i < tableCount; i++) {
+      if (tables[i].name == name) {
+        return tables[i];
+      }
+    }
+    for (int i = 0; i < tableCount; i++) {
+      if (tables[i].name.equals(name)) {
+        return tables[i];
+      }
+    }
+    return null;
+  }
+
+  private void setValue(Table t, int slot, int col, Object value) {
+    int index = slot * t.width + col;
+    int delta = sizeOf(value) - sizeOf(t.values[index]);
+    t.values[index] = value;
+    t.bytes[slot] += delta;
+    size += delta;
+  }
+
+  private void free(Table t, int slot) {
+    if (t.dirty[slot] == 0) {
+      unlink(handle(t, slot));
+    } else {
+      dirtyCount -= Long.bitCount(t.dirty[slot]);
+    }
+    size -= t.bytes[slot];
+    t.release(slot);
+  }
+
+  private void trim() {
+    while (size > budget && lruHead != NONE) {
+      Table t = tables[lruHead & TABLE_MASK];
+      int slot = lruHead >>> TABLE_BITS;
+      for (int col = 0; col < t.width; col++) {
+        if (t.values[slot * t.width + col] != null) {
+          t.evictions[col]++;
+        }
+      }
+      free(t, slot);
+    }
+  }
+
+  private void touch(Table t, int slot) {
+    if (t.dirty[slot] == 0) {
+      int handle = handle(t, slot);
+      if (handle != lruTail) {
+        unlink(handle);
+        linkLast(handle);
+      }
+    }
+  }
+
+  private void linkLast(int handle) {
+    setPrev(handle, lruTail);
+    setNext(handle, NONE);
+    if (lruTail == NONE) {
+      lruHead = handle;
+    } else {
+      setNext(lruTail, handle);
+    }
+    lruTail = handle;
+  }
+
+  private void unlink(int handle) {
+    Table t = tables[handle & TABLE_MASK];
+    int slot = handle >>> TABLE_BITS;
+    int prev = t.prev[slot];
+    int next = t.next[slot];
+    if (prev == NONE) {
+      lruHead = next;
+    } else {
+      setNext(prev, next);
+    }
+    if (next == NONE) {
+      lruTail = prev;
+    } else {
+      setPrev(next, prev);
+    }
+  }
+
+  private void setPrev(int handle, int prev) {
+    tables[handle & TABLE_MASK].prev[handle >>> TABLE_BITS] = prev;
+  }
+
+  private void setNext(int handle, int next) {
+    tables[handle & TABLE_MASK].next[handle >>> TABLE_BITS] = next;
+  }
+
+  private static int handle(Table t, int slot) {
+    return slot << TABLE_BITS | t.index;
+  }
+
+  private static int sizeOf(Object value) {
+    if (value == null) {
+      return 0;
+    } else if (value instanceof String) {
+      return VALUE_OVERHEAD + 2 * ((String) value).length();
+    }
+    return VALUE_OVERHEAD;
+  }
+
+  /**
+   * A write that has to be done: changed columns of a row and their values.
+   */
+  static class DirtyRow {
+    final String table;
+    final long id;
+    final String[] columns;
+    final Object[] values;
+
+    DirtyRow(String table, long id, String[] columns, Object[] values) {
+      this.table = table;
+      this.id = id;
+      this.columns = columns;
+      this.values = values;
+    }
+  }
+
+  /**
+   * The rows of one table. Values are stored at slot * width + column.
+   */
+  private static class Table {
+    final int index;
+    final String name;
+    final String[] columns;
+    final int width;
+    final LongIntMap slots = new LongIntMap(NONE);
+    final long[] hits;
+    final long[] misses;
+    final long[] evictions;
+
+    long[] ids;
+    Object[] values;
+    // bit mask of the columns that have pending writes
+    long[] dirty;
+    int[] bytes;
+    // LRU list links, as handles; next also links free slots
+    int[] prev;
+    int[] next;
+    // slots below this have been used at least once
+    int used = 0;
+    int freeHead = NONE;
+
+    Table(int index, String name, String[] columns) {
+      if (columns.length > 64) {
+        throw new IllegalArgumentException("Too many columns in " + name);
+      }
+      this.index = index;
+      this.name = name;
+      this.columns = columns;
+      this.width = columns.length;
+      hits = new long[width];
+      misses = new long[width];
+      evictions = new long[width];
+      resize(64);
+    }
+
+    int column(String column) {
+      // column names are constants, so comparing references is usually enough
+      for (int i = 0; i < width; i++) {
+        if (columns[i] == column) {
+          return i;
+        }
+      }
+      for (int i = 0; i < width; i++) {
+        if (columns[i].equals(column)) {
+          return i;
+        }
+      }
+      throw new IllegalArgumentException("Unknown column " + column + " in "
+          + name);
+    }
+
+    /**
+     * Creates an empty row.
+     */
+    int allocate(long id) {
+      int slot;
+      if (freeHead != NONE) {
+        slot = freeHead;
+        freeHead = next[slot];
+      } else {
+        if (used == ids.length) {
+          resize(ids.length * 2);
+        }
+        slot = used++;
+      }
+      ids[slot] = id;
+      dirty[slot] = 0;
+      bytes[slot] = ROW_OVERHEAD + 8 * width;
+      slots.put(id, slot);
+      return slot;
+    }
+
+    void release(int slot) {
+      slots.remove(ids[slot]);
+      Arrays.fill(values, slot * width, (slot + 1) * width, null);
+      dirty[slot] = 0;
+      bytes[slot] = 0;
+      next[slot] = freeHead;
+      freeHead = slot;
+    }
+
+    private void resize(int capacity) {
+      if (capacity > (Integer.MAX_VALUE >>> TABLE_BITS)) {
+        throw new IllegalStateException("Too many rows in " + name);
+      }
+      ids = ids == null ? new long[capacity] : Arrays.copyOf(ids, capacity);
+      values = values == null ? new Object[capacity * width] : Arrays.copyOf(
+          values, capacity * width);
+      dirty = dirty == null ? new long[capacity] : Arrays.copyOf(dirty,
+          capacity);
+      bytes = bytes == null ? new int[capacity] : Arrays.copyOf(bytes,
+          capacity);
+      prev = prev == null ? new int[capacity] : Arrays.copyOf(prev, capacity);
+      next = next == null ? new int[capacity] : Arrays.copyOf(next, capacity);
+    }
+  }
+}
@@ -16,9 +16,14 @@
 package de.knufficast.logic.db;
 
 import android.content.Context;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.util.Log;
+import de.knufficast.logic.db.DBEpisode.DownloadState;
+import de.knufficast.logic.db.DBEpisode.FlattrState;
+import de.knufficast.logic.db.DBEpisode.PlayState;
 
 /**
  * A class that keeps information about the SQLite table structure.
@@ -28,7 +33,17 @@ import android.util.Log;
  */
 public class SQLiteHelper extends SQLiteOpenHelper {
   public static final String TABLE_EPISODES = "episodes";
+  // frequently changing episode columns, keyed by the episode ID
+  public static final String TABLE_EPISODE_STATE = "episode_state";
   public static final String TABLE_FEEDS = "feeds";
+  // the compressed descriptions and contents, keyed by the episode ID
+  public static final String TABLE_EPISODE_NOTES = "episode_notes";
+  // the play queue, keyed by the episode ID
+  public static final String TABLE_QUEUE = "queue";
+  // episodes of feeds that are being parsed, in the order of the feed
+  public static final String TABLE_EPISODE_STAGING = "episode_staging";
+  // the fingerprints of episodes that EpisodeRetention has deleted, by feed
+  public static final String TABLE_DELETED_EPISODES = "deleted_episodes";
   public static final String C_ID = "_id";
   public static final String C_EP_FEED_ID = "feedId";
   public static final String C_EP_DATA_URL = "dataUrl";
@@ -46,6 +61,9 @@ public class SQLiteHelper extends SQLiteOpenHelper {
   public static final String C_EP_SEEK_LOCATION = "seekLocation";
   public static final String C_EP_DURATION = "duration";
   public static final String C_EP_IS_NEW = "isNew";
+  public static final String C_EP_FINGERPRINT = "fingerprint";
+  // when the episode was first seen, in milliseconds UNIX time
+  public static final String C_EP_ADDED = "added";
   public static final String C_FD_DESCRIPTION = "description";
   public static final String C_FD_ENCODING = "encoding";
   public static final String C_FD_ETAG = "eTag";
@@ -53,10 +71,37 @@ public class SQLiteHelper extends SQLiteOpenHelper {
   public static final String C_FD_IMG_URL = "imgUrl";
   public static final String C_FD_LAST_UPDATED = "lastUpdated";
   public static final String C_FD_TITLE = "title";
-  public static final String C_QUEUE_EP_ID = "epId";
+  // 1 if refreshes always read the whole feed, see XMLToDBWriter
+  public static final String C_FD_READ_ALL = "readAll";
+  public static final String C_QUEUE_POSITION = "position";
+  // which parse a staged episode belongs to
+  public static final String C_ST_WRITER = "writer";
+
+  /**
+   * All columns of the episodes table, except for the ID.
+   */
+  public static final String[] EP_COLUMNS = { C_EP_FEED_ID, C_EP_DATA_URL,
+      C_EP_TITLE, C_EP_FLATTR_URL, C_EP_GUID, C_EP_IMG_URL, C_EP_FINGERPRINT,
+      C_EP_ADDED };
+  /**
+   * All columns of the episode state table, except for the ID.
+   */
+  public static final String[] EP_STATE_COLUMNS = { C_EP_DOWNLOADED_BYTES,
+      C_EP_TOTAL_BYTES, C_EP_DOWNLOAD_STATE, C_EP_FLATTR_STATE,
+      C_EP_PLAY_STATE, C_EP_SEEK_LOCATION, C_EP_DURATION, C_EP_IS_NEW };
+  /**
+   * All columns of the feeds table, except for the ID.
+   */
+  public static final String[] FD_COLUMNS = { C_FD_DESCRIPTION, C_FD_ENCODING,
+      C_FD_ETAG, C_FD_FEED_URL, C_FD_IMG_URL, C_FD_TITLE, C_FD_LAST_UPDATED,
+      C_FD_READ_ALL };
+  /**
+   * All columns of the queue table, except for the ID.
+   */
+  public static final String[] QUEUE_COLUMNS = { C_QUEUE_POSITION };
 
   private static final String DATABASE_NAME = "knufficast.db";
-  private static final int DATABASE_VERSION = 2;
+  private static final int DATABASE_VERSION = 16;
 
   private static final String UPDATE = " text not null default '';";
   private static final String NEXT = " text not null default '', ";
@@ -64,11 +109,21 @@ public class SQLiteHelper extends SQLiteOpenHelper {
   private static final String NEXTENUM = " text not null default 'NONE', ";
   private static final String NEXTBOOLEAN = " text not null default '1', ";
   private static final String LAST = " text not null default '');";
+  private static final String NEXTINTEGER = " integer not null default 0, ";
+  private static final String NEXTFLAG = " integer not null default 1, ";
 
   public SQLiteHelper(Context context) {
     super(context, DATABASE_NAME, null, DATABASE_VERSION);
   }
 
+  /**
+   * Opens a database in another file, e.g. for tests.
+   */
+  SQLiteHelper(Context context, String name) {
+    super(context, name, null, DATABASE_VERSION);
+  }
+
+  // the layout of version 2, see onCreate
   private static final String EP_CREATE = "create table "
       + TABLE_EPISODES + "("
       + C_ID + " integer primary key autoincrement, "
@@ -101,10 +156,58 @@ public class SQLiteHelper extends SQLiteOpenHelper {
       + C_FD_TITLE + NEXT
       + C_FD_LAST_UPDATED + LAST;
 
+  /**
+   * Returns all columns of a table, except for the ID.
+   */
+  public static String[] getColumns(String table) {
+    if (TABLE_EPISODES.equals(table)) {
+      return EP_COLUMNS;
+    } else if (TABLE_EPISODE_STATE.equals(table)) {
+      return EP_STATE_COLUMNS;
+    } else if (TABLE_FEEDS.equals(table)) {
+      return FD_COLUMNS;
+    } else if (TABLE_QUEUE.equals(table)) {
+      return QUEUE_COLUMNS;
+    }
+    throw new IllegalArgumentException("Unknown table " + table);
+  }
+
+  /**
+   * Returns the table whose IDs are the IDs of the given table (e.g. the
+   * episodes for the episode state), or null if the table has its own IDs.
+   */
+  public static String getParentTable(String table) {
+    if (TABLE_EPISODE_STATE.equals(table) || TABLE_EPISODE_NOTES.equals(table)
+        || TABLE_QUEUE.equals(table)) {
+      return TABLE_EPISODES;
+    }
+    return null;
+  }
+
+  /**
+   * Creates the tables in the layout of version 2 and migrates them from there,
+   * so that new and upgraded databases always end up with the same schema.
+   */
   @Override
   public void onCreate(SQLiteDatabase database) {
     database.execSQL(FD_CREATE);
     database.execSQL(EP_CREATE);
+    onUpgrade(database, 2, DATABASE_VERSION);
+  }
+
+  /**
+   * Turns on foreign keys, so that deleting an episode deletes its state,
+   * notes and queue entry. Migrations run before this, without foreign keys,
+   * so that they can copy and drop tables. Also drops staged episodes of parses
+   * that the process died in.
+   */
+  @Override
+  public void onOpen(SQLiteDatabase db) {
+    super.onOpen(db);
+    if (!db.isReadOnly()) {
+      db.execSQL("PRAGMA foreign_keys = ON;");
+      db.execSQL("delete from " + TABLE_EPISODE_STAGING + ";");
+    }
   }
 
   @Override
@@ -113,8 +216,329 @@ public class SQLiteHelper extends SQLiteOpenHelper {
     if (oldVersion < 2) {
       db.execSQL("alter table " + TABLE_EPISODES + " add column "
           + C_EP_CONTENT + UPDATE);
-    } else if (oldVersion < DATABASE_VERSION) {
-      onCreate(db);
     }
+    if (oldVersion < 3) {
+      migrateToIntegerColumns(db);
+    }
+    if (oldVersion < 4) {
+      migrateToEpisodeState(db);
+    }
+    if (oldVersion < 5) {
+      addFingerprints(db);
+    }
+    if (oldVersion < 6) {
+      addIndexes(db);
+    }
+    if (oldVersion < 7) {
+      db.execSQL("create table " + TABLE_QUEUE + "("
+          + C_ID + " integer primary key, "
+          + C_QUEUE_POSITION + " integer not null default 0, "
+          + "FOREIGN KEY(" + C_ID + ") REFERENCES " + TABLE_EPISODES + "(" + C_ID + ") ON DELETE CASCADE);");
+    }
+    if (oldVersion < 8) {
+      moveShowNotes(db);
+    }
+    if (oldVersion < 9) {
+      // the existing episodes count as added now
+      db.execSQL("alter table " + TABLE_EPISODES + " add column " + C_EP_ADDED
+          + " integer not null default 0;");
+      db.execSQL("update " + TABLE_EPISODES + " set " + C_EP_ADDED + " = "
+          + System.currentTimeMillis() + ";");
+    }
+    if (oldVersion < 10) {
+      deleteOrphans(db);
+    }
+    if (oldVersion < 11) {
+      // see XMLToDBWriter
+      db.execSQL("create table " + TABLE_EPISODE_STAGING + "("
+          + C_ID + " integer primary key, "
+          + C_ST_WRITER + " integer not null, "
+          + C_EP_DATA_URL + NEXT
+          + C_EP_FLATTR_URL + NEXT
+          + C_EP_GUID + NEXT
+          + C_EP_IMG_URL + NEXT
+          + C_EP_TITLE + NEXT
+          + C_EP_FINGERPRINT + " integer not null default 0, "
+          + C_EP_DESCRIPTION + " blob, "
+          + C_EP_CONTENT + " blob);");
+    }
+    if (oldVersion < 12) {
+      db.execSQL("alter table " + TABLE_FEEDS + " add column " + C_FD_READ_ALL
+          + " integer not null default 0;");
+    }
+    if (oldVersion < 13) {
+      // for finding the interrupted downloads at startup (see
+      // Configuration#sanitize). Partial indexes need a newer SQLite.
+      db.execSQL("create index " + TABLE_EPISODE_STATE + "_download_state on "
+          + TABLE_EPISODE_STATE + "(" + C_EP_DOWNLOAD_STATE + ");");
+    }
+    if (oldVersion < 14) {
+      // Queue#load reads the queue in this order
+      db.execSQL("create index " + TABLE_QUEUE + "_position on " + TABLE_QUEUE
+          + "(" + C_QUEUE_POSITION + ");");
+    }
+    if (oldVersion < 15) {
+      // so that refreshes don't add deleted episodes again (see
+      // XMLToDBWriter)
+      db.execSQL("create table " + TABLE_DELETED_EPISODES + "("
+          + C_EP_FEED_ID + " integer not null, "
+          + C_EP_FINGERPRINT + " integer not null, "
+          + "PRIMARY KEY(" + C_EP_FEED_ID + ", " + C_EP_FINGERPRINT + "), "
+          + "FOREIGN KEY(" + C_EP_FEED_ID + ") REFERENCES " + TABLE_FEEDS + "(" + C_ID + ") ON DELETE CASCADE);");
+    }
+    if (oldVersion < 16) {
+      // in the order they were deleted, see EpisodeRetention
+      db.execSQL("create index " + TABLE_DELETED_EPISODES + "_feed on "
+          + TABLE_DELETED_EPISODES + "(" + C_EP_FEED_ID + ");");
+    }
+  }
+
+  /**
+   * Version 3: numbers, flags and enum ordinals are stored as INTEGER instead
+   * of text. SQLite can't change the type of a column, so the episodes table is
+   * copied.
+   */
+  private void migrateToIntegerColumns(SQLiteDatabase db) {
+    String newTable = TABLE_EPISODES + "_v3";
+    db.execSQL("create table " + newTable + "("
+        + C_ID + " integer primary key autoincrement, "
+        + C_EP_FEED_ID + " integer not null, "
+        + C_EP_DATA_URL + NEXT
+        + C_EP_TITLE + NEXT
+        + C_EP_DESCRIPTION + NEXT
+        + C_EP_FLATTR_URL + NEXT
+        + C_EP_GUID + NEXT
+        + C_EP_IMG_URL + NEXT
+        + C_EP_DOWNLOADED_BYTES + NEXTINTEGER
+        + C_EP_TOTAL_BYTES + NEXTINTEGER
+        + C_EP_DOWNLOAD_STATE + nextEnum(DownloadState.NONE)
+        + C_EP_FLATTR_STATE + nextEnum(FlattrState.NONE)
+        + C_EP_PLAY_STATE + nextEnum(PlayState.NONE)
+        + C_EP_SEEK_LOCATION + NEXTINTEGER
+        + C_EP_DURATION + NEXTINTEGER
+        + C_EP_IS_NEW + NEXTFLAG
+        + C_EP_CONTENT + NEXT
+        + "FOREIGN KEY(" + C_EP_FEED_ID + ") REFERENCES " + TABLE_FEEDS + "(" + C_ID + "));");
+    db.execSQL("insert into " + newTable + " select "
+        + C_ID + ", "
+        + C_EP_FEED_ID + ", "
+        + C_EP_DATA_URL + ", "
+        + C_EP_TITLE + ", "
+        + C_EP_DESCRIPTION + ", "
+        + C_EP_FLATTR_URL + ", "
+        + C_EP_GUID + ", "
+        + C_EP_IMG_URL + ", "
+        + "cast(" + C_EP_DOWNLOADED_BYTES + " as integer), "
+        + "cast(" + C_EP_TOTAL_BYTES + " as integer), "
+        + ordinalOf(C_EP_DOWNLOAD_STATE, DownloadState.values(), DownloadState.NONE) + ", "
+        + ordinalOf(C_EP_FLATTR_STATE, FlattrState.values(), FlattrState.NONE) + ", "
+        + ordinalOf(C_EP_PLAY_STATE, PlayState.values(), PlayState.NONE) + ", "
+        + "cast(" + C_EP_SEEK_LOCATION + " as integer), "
+        + "cast(" + C_EP_DURATION + " as integer), "
+        + "cast(" + C_EP_IS_NEW + " as integer), "
+        + C_EP_CONTENT
+        + " from " + TABLE_EPISODES + ";");
+    db.execSQL("drop table " + TABLE_EPISODES + ";");
+    db.execSQL("alter table " + newTable + " rename to " + TABLE_EPISODES + ";");
+  }
+
+  /**
+   * Version 4: the frequently updated columns move from the episodes table to
+   * the narrow episode state table, so that progress updates don't rewrite the
+   * rows with the large descriptions.
+   */
+  private void migrateToEpisodeState(SQLiteDatabase db) {
+    db.execSQL("create table " + TABLE_EPISODE_STATE + "("
+        + C_ID + " integer primary key, "
+        + C_EP_DOWNLOADED_BYTES + NEXTINTEGER
+        + C_EP_TOTAL_BYTES + NEXTINTEGER
+        + C_EP_DOWNLOAD_STATE + nextEnum(DownloadState.NONE)
+        + C_EP_FLATTR_STATE + nextEnum(FlattrState.NONE)
+        + C_EP_PLAY_STATE + nextEnum(PlayState.NONE)
+        + C_EP_SEEK_LOCATION + NEXTINTEGER
+        + C_EP_DURATION + NEXTINTEGER
+        + C_EP_IS_NEW + NEXTFLAG
+        + "FOREIGN KEY(" + C_ID + ") REFERENCES " + TABLE_EPISODES + "(" + C_ID + ") ON DELETE CASCADE);");
+    db.execSQL("insert into " + TABLE_EPISODE_STATE + " select "
+        + C_ID + ", "
+        + C_EP_DOWNLOADED_BYTES + ", "
+        + C_EP_TOTAL_BYTES + ", "
+        + C_EP_DOWNLOAD_STATE + ", "
+        + C_EP_FLATTR_STATE + ", "
+        + C_EP_PLAY_STATE + ", "
+        + C_EP_SEEK_LOCATION + ", "
+        + C_EP_DURATION + ", "
+        + C_EP_IS_NEW
+        + " from " + TABLE_EPISODES + ";");
+    String newTable = TABLE_EPISODES + "_v4";
+    db.execSQL("create table " + newTable + "("
+        + C_ID + " integer primary key autoincrement, "
+        + C_EP_FEED_ID + " integer not null, "
+        + C_EP_DATA_URL + NEXT
+        + C_EP_TITLE + NEXT
+        + C_EP_DESCRIPTION + NEXT
+        + C_EP_FLATTR_URL + NEXT
+        + C_EP_GUID + NEXT
+        + C_EP_IMG_URL + NEXT
+        + C_EP_CONTENT + NEXT
+        + "FOREIGN KEY(" + C_EP_FEED_ID + ") REFERENCES " + TABLE_FEEDS + "(" + C_ID + "));");
+    db.execSQL("insert into " + newTable + " select "
+        + C_ID + ", "
+        + C_EP_FEED_ID + ", "
+        + C_EP_DATA_URL + ", "
+        + C_EP_TITLE + ", "
+        + C_EP_DESCRIPTION + ", "
+        + C_EP_FLATTR_URL + ", "
+        + C_EP_GUID + ", "
+        + C_EP_IMG_URL + ", "
+        + C_EP_CONTENT
+        + " from " + TABLE_EPISODES + ";");
+    db.execSQL("drop table " + TABLE_EPISODES + ";");
+    db.execSQL("alter table " + newTable + " rename to " + TABLE_EPISODES + ";");
+  }
+
+  /**
+   * Version 5: episodes get a fingerprint (see {@link DBEpisode#fingerprint}),
+   * so that a feed refresh can find the known episodes of a feed with one
+   * indexed query.
+   */
+  private void addFingerprints(SQLiteDatabase db) {
+    db.execSQL("alter table " + TABLE_EPISODES + " add column "
+        + C_EP_FINGERPRINT + " integer not null default 0;");
+    String[] columns = { C_ID, C_EP_GUID, C_EP_DATA_URL, C_EP_TITLE };
+    Cursor cursor = db.query(TABLE_EPISODES, columns, null, null, null, null,
+        null);
+    SQLiteStatement update = db.compileStatement("update " + TABLE_EPISODES
+        + " set " + C_EP_FINGERPRINT + " = ? where " + C_ID + " = ?");
+    cursor.moveToFirst();
+    while (!cursor.isAfterLast()) {
+      update.bindLong(1, DBEpisode.fingerprint(cursor.getString(1),
+          cursor.getString(2), cursor.getString(3)));
+      update.bindLong(2, cursor.getLong(0));
+      update.executeUpdateDelete();
+      cursor.moveToNext();
+    }
+    update.close();
+    cursor.close();
+    db.execSQL("create index " + TABLE_EPISODES + "_feed_fingerprint on "
+        + TABLE_EPISODES + "(" + C_EP_FEED_ID + ", " + C_EP_FINGERPRINT + ");");
+  }
+
+  /**
+   * Version 6: indexes for every lookup that isn't by ID (see
+   * QueryPlanTest). An episode can only be once in a feed.
+   */
+  private void addIndexes(SQLiteDatabase db) {
+    // duplicates keep their rows (they might be downloaded or queued), but get
+    // a fingerprint that no feed item has
+    db.execSQL("update " + TABLE_EPISODES + " set " + C_EP_FINGERPRINT
+        + " = -" + C_ID + " where " + C_ID + " not in (select min(" + C_ID
+        + ") from " + TABLE_EPISODES + " group by " + C_EP_FEED_ID + ", "
+        + C_EP_FINGERPRINT + ");");
+    db.execSQL("drop index " + TABLE_EPISODES + "_feed_fingerprint;");
+    db.execSQL("create unique index " + TABLE_EPISODES + "_feed_fingerprint on "
+        + TABLE_EPISODES + "(" + C_EP_FEED_ID + ", " + C_EP_FINGERPRINT + ");");
+    db.execSQL("create index " + TABLE_EPISODES + "_feed on " + TABLE_EPISODES
+        + "(" + C_EP_FEED_ID + ");");
+    db.execSQL("create index " + TABLE_FEEDS + "_feed_url on " + TABLE_FEEDS
+        + "(" + C_FD_FEED_URL + ");");
+  }
+
+  /**
+   * Version 8: descriptions and contents move to the episode notes table,
+   * compressed (see {@link ShowNotes}). The episodes table is copied without
+   * them, so that it is small enough to be scanned and cached cheaply.
+   */
+  private void moveShowNotes(SQLiteDatabase db) {
+    db.execSQL("create table " + TABLE_EPISODE_NOTES + "("
+        + C_ID + " integer primary key, "
+        + C_EP_DESCRIPTION + " blob, "
+        + C_EP_CONTENT + " blob, "
+        + "FOREIGN KEY(" + C_ID + ") REFERENCES " + TABLE_EPISODES + "(" + C_ID + ") ON DELETE CASCADE);");
+    String[] columns = { C_ID, C_EP_DESCRIPTION, C_EP_CONTENT };
+    Cursor cursor = db.query(TABLE_EPISODES, columns, C_EP_DESCRIPTION
+        + " != '' or " + C_EP_CONTENT + " != ''", null, null, null, null);
+    SQLiteStatement insert = db.compileStatement("insert into "
+        + TABLE_EPISODE_NOTES + " values (?, ?, ?)");
+    cursor.moveToFirst();
+    while (!cursor.isAfterLast()) {
+      insert.bindLong(1, cursor.getLong(0));
+      bindNullable(insert, 2, ShowNotes.compress(cursor.getString(1)));
+      bindNullable(insert, 3, ShowNotes.compress(cursor.getString(2)));
+      insert.executeInsert();
+      cursor.moveToNext();
+    }
+    insert.close();
+    cursor.close();
+
+    String newTable = TABLE_EPISODES + "_v8";
+    db.execSQL("create table " + newTable + "("
+        + C_ID + " integer primary key autoincrement, "
+        + C_EP_FEED_ID + " integer not null, "
+        + C_EP_DATA_URL + NEXT
+        + C_EP_TITLE + NEXT
+        + C_EP_FLATTR_URL + NEXT
+        + C_EP_GUID + NEXT
+        + C_EP_IMG_URL + NEXT
+        + C_EP_FINGERPRINT + " integer not null default 0, "
+        + "FOREIGN KEY(" + C_EP_FEED_ID + ") REFERENCES " + TABLE_FEEDS + "(" + C_ID + "));");
+    db.execSQL("insert into " + newTable + " select "
+        + C_ID + ", "
+        + C_EP_FEED_ID + ", "
+        + C_EP_DATA_URL + ", "
+        + C_EP_TITLE + ", "
+        + C_EP_FLATTR_URL + ", "
+        + C_EP_GUID + ", "
+        + C_EP_IMG_URL + ", "
+        + C_EP_FINGERPRINT
+        + " from " + TABLE_EPISODES + ";");
+    // drops the indexes of version 6 with it
+    db.execSQL("drop table " + TABLE_EPISODES + ";");
+    db.execSQL("alter table " + newTable + " rename to " + TABLE_EPISODES + ";");
+    db.execSQL("create unique index " + TABLE_EPISODES + "_feed_fingerprint on "
+        + TABLE_EPISODES + "(" + C_EP_FEED_ID + ", " + C_EP_FINGERPRINT + ");");
+    db.execSQL("create index " + TABLE_EPISODES + "_feed on " + TABLE_EPISODES
+        + "(" + C_EP_FEED_ID + ");");
+  }
+
+  /**
+   * Version 10: feeds used to be deleted without their episodes. Deletes what
+   * is left of them, so that the foreign keys hold when they are turned on.
+   */
+  private void deleteOrphans(SQLiteDatabase db) {
+    db.execSQL("delete from " + TABLE_EPISODES + " where " + C_EP_FEED_ID
+        + " not in (select " + C_ID + " from " + TABLE_FEEDS + ");");
+    String[] children = { TABLE_EPISODE_STATE, TABLE_EPISODE_NOTES,
+        TABLE_QUEUE };
+    for (String child : children) {
+      db.execSQL("delete from " + child + " where " + C_ID + " not in (select "
+          + C_ID + " from " + TABLE_EPISODES + ");");
+    }
+  }
+
+  private static void bindNullable(SQLiteStatement statement, int index,
+      byte[] value) {
+    if (value == null) {
+      statement.bindNull(index);
+    } else {
+      statement.bindBlob(index, value);
+    }
+  }
+
+  private static String nextEnum(Enum<?> defaultValue) {
+    return " integer not null default " + defaultValue.ordinal() + ", ";
+  }
+
+  /**
+   * SQL expression that converts an enum name in the column to its ordinal.
+   */
+  private static String ordinalOf(String column, Enum<?>[] values,
+      Enum<?> fallback) {
+    StringBuilder sb = new StringBuilder("case " + column);
+    for (Enum<?> value : values) {
+      sb.append(" when '" + value.name() + "' then " + value.ordinal());
+    }
+    sb.append(" else " + fallback.ordinal() + " end");
+    return sb.toString();
   }
 }
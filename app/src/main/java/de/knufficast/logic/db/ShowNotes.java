@@ -0,0 +1,171 @@
+/*******************************************************************************
+ * Copyright 2012 Crazywater
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package de.knufficast.logic.db;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import android.util.Log;
+import android.util.LruCache;
+
+/**
+ * The descriptions and contents of episodes. They are most of the database,
+ * but only shown in the episode details, so they live in their own table,
+ * compressed, and are only read when needed. The last few that were read are
+ * kept decompressed.
+ * 
+ * @author crazywater
+ * 
+ */
+class ShowNotes {
+  private static final String TABLE = SQLiteHelper.TABLE_EPISODE_NOTES;
+  static final String[] COLUMNS = { SQLiteHelper.C_EP_DESCRIPTION,
+      SQLiteHelper.C_EP_CONTENT };
+  private static final String CHARSET = "UTF-8";
+  // decompressed characters kept in memory
+  private static final int CACHE_CHARS = 256 * 1024;
+
+  // first byte of every compressed value, for changing the dictionary later
+  private static final byte FORMAT_DICTIONARY_1 = 1;
+  /**
+   * Preset dictionary for DEFLATE: strings that are common in show notes.
+   * Short texts compress badly on their own, because the compressor hasn't
+   * seen anything yet; with the dictionary, these strings can be referenced
+   * from the first byte on. The most frequent strings go last, where the
+   * references to them are shortest. Never change it, add another format
+   * instead.
+   */
+  private static final byte[] DICTIONARY_1 = toBytes("Sponsored by "
+      + "Support the show Subscribe on iTunes Download the episode "
+      + "Links mentioned in this episode Show notes Follow us on Twitter "
+      + "Facebook YouTube Instagram Patreon feedback podcast episode "
+      + "<img src=\"https://</h3><h2></h2><ol><li></ol><blockquote>"
+      + "<em></em> target=\"_blank\" rel=\"nofollow\" .html\">.com/"
+      + "&quot;&#8217;&nbsp;&amp;<br /><br><strong></strong>"
+      + "<ul><li></li></ul><p><a href=\"http://www.</a></p>\n<p>");
+
+  private final Database db;
+  // episode ID -> { description, content }
+  private final LruCache<Long, String[]> cache = new LruCache<Long, String[]>(
+      CACHE_CHARS) {
+    @Override
+    protected int sizeOf(Long id, String[] notes) {
+      return notes[0].length() + notes[1].length() + 1;
+    }
+  };
+
+  ShowNotes(Database db) {
+    this.db = db;
+  }
+
+  String getDescription(long id) {
+    return get(id)[0];
+  }
+
+  String getContent(long id) {
+    return get(id)[1];
+  }
+
+  /**
+   * Forgets the decompressed notes of an episode, e.g. because it is deleted.
+   */
+  void evict(long id) {
+    cache.remove(id);
+  }
+
+  private String[] get(long id) {
+    String[] notes = cache.get(id);
+    if (notes == null) {
+      byte[][] blobs = db.getBlobs(TABLE, id, COLUMNS);
+      notes = new String[] { decompress(blobs[0]), decompress(blobs[1]) };
+      cache.put(id, notes);
+    }
+    return notes;
+  }
+
+  /**
+   * Compresses a description or content for storing it in the notes table.
+   * Returns null for empty text, which is read back as "".
+   */
+  static byte[] compress(String text) {
+    if (text == null || text.length() == 0) {
+      return null;
+    }
+    Deflater deflater = new Deflater();
+    deflater.setDictionary(DICTIONARY_1);
+    deflater.setInput(toBytes(text));
+    deflater.finish();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    out.write(FORMAT_DICTIONARY_1);
+    byte[] buffer = new byte[4096];
+    while (!deflater.finished()) {
+      out.write(buffer, 0, deflater.deflate(buffer));
+    }
+    deflater.end();
+    return out.toByteArray();
+  }
+
+  /**
+   * Decompresses what {@link #compress} returned.
+   */
+  static String decompress(byte[] data) {
+    if (data == null || data.length == 0) {
+      return "";
+    }
+    if (data[0] != FORMAT_DICTIONARY_1) {
+      Log.e("ShowNotes", "Unknown format " + data[0]);
+      return "";
+    }
+    Inflater inflater = new Inflater();
+    inflater.setInput(data, 1, data.length - 1);
+    ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 4);
+    byte[] buffer = new byte[4096];
+    try {
+      while (!inflater.finished()) {
+        int count = inflater.inflate(buffer);
+        if (count == 0) {
+          if (inflater.needsDictionary()) {
+            inflater.setDictionary(DICTIONARY_1);
+          } else if (inflater.needsInput()) {
+            Log.e("ShowNotes", "Truncated notes");
+            break;
+          }
+        }
+        out.write(buffer, 0, count);
+      }
+      return new String(out.toByteArray(), CHARSET);
+    } catch (DataFormatException e) {
+      Log.e("ShowNotes", "Corrupt notes", e);
+      return "";
+    } catch (UnsupportedEncodingException e) {
+      throw new RuntimeException(e);
+    } finally {
+      inflater.end();
+    }
+  }
+
+  private static byte[] toBytes(String text) {
+    try {
+      return text.getBytes(CHARSET);
+    } catch (UnsupportedEncodingException e) {
+      // every Java platform supports UTF-8
+      throw new RuntimeException(e);
+    }
+  }
+}
@@ -0,0 +1,171 @@
+/*******************************************************************************
+ * Copyright 2012 Crazywater
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package de.knufficast.logic.db;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+/**
+ * Keeps compiled statements around, so that frequent queries aren't parsed
+ * again every time. Statements aren't thread-safe: synchronize on a statement
+ * while binding and executing it.
+ * 
+ * @author crazywater
+ * 
+ */
+class StatementCache {
+  private final SQLiteDatabase database;
+  // table -> column -> "SELECT column FROM table WHERE _id = ?"
+  private final Map<String, Map<String, SQLiteStatement>> selects = new HashMap<String, Map<String, SQLiteStatement>>();
+  // sql -> statement, for writes
+  private final Map<String, SQLiteStatement> writes = new HashMap<String, SQLiteStatement>();
+
+  StatementCache(SQLiteDatabase database) {
+    this.database = database;
+  }
+
+  /**
+   * Returns a statement that selects a single column of a row. Bind the row id
+   * to parameter 1.
+   */
+  synchronized SQLiteStatement select(String table, String column) {
+    Map<String, SQLiteStatement> tableSelects = selects.get(table);
+    if (tableSelects == null) {
+      tableSelects = new HashMap<String, SQLiteStatement>();
+      selects.put(table, tableSelects);
+    }
+    SQLiteStatement statement = tableSelects.get(column);
+    if (statement == null) {
+      statement = database.compileStatement(selectSql(table, column));
+      tableSelects.put(column, statement);
+    }
+    return statement;
+  }
+
+  /**
+   * Returns a statement that updates the columns of a row. Bind the values of
+   * the columns to parameters 1 to n, and the row id to parameter n + 1.
+   */
+  synchronized SQLiteStatement update(String table, String[] columns) {
+    return write(updateSql(table, columns));
+  }
+
+  /**
+   * Returns a statement that inserts a row. Bind the values of the columns to
+   * parameters 1 to n.
+   */
+  synchronized SQLiteStatement insert(String table, String[] columns) {
+    StringBuilder sb = new StringBuilder("INSERT INTO " + table + " (");
+    for (int i = 0; i < columns.length; i++) {
+      if (i > 0) {
+        sb.append(", ");
+      }
+      sb.append(columns[i]);
+    }
+    sb.append(") VALUES (");
+    for (int i = 0; i < columns.length; i++) {
+      sb.append(i > 0 ? ", ?" : "?");
+    }
+    sb.append(')');
+    return write(sb.toString());
+  }
+
+  /**
+   * Returns a statement that inserts a row with default values, or resets an
+   * existing one. Bind the row id to parameter 1. For tables that are keyed by
+   * the ID of another row, nothing is inserted if that row has been deleted in
+   * the meantime, instead of violating the foreign key.
+   */
+  synchronized SQLiteStatement insertOrReplace(String table) {
+    return write(insertOrReplaceSql(table));
+  }
+
+  /**
+   * Returns a compiled statement for any SQL that writes.
+   */
+  synchronized SQLiteStatement compile(String sql) {
+    return write(sql);
+  }
+
+  /**
+   * Returns a statement that deletes a row. Bind the row id to parameter 1.
+   */
+  synchronized SQLiteStatement delete(String table) {
+    return write(deleteSql(table));
+  }
+
+  // the SQL of the statements above, also used by the query plan test
+
+  static String selectSql(String table, String column) {
+    return "SELECT " + column + " FROM " + table + " WHERE "
+        + SQLiteHelper.C_ID + " = ?";
+  }
+
+  static String updateSql(String table, String[] columns) {
+    StringBuilder sb = new StringBuilder("UPDATE " + table + " SET ");
+    for (int i = 0; i < columns.length; i++) {
+      if (i > 0) {
+        sb.append(", ");
+      }
+      sb.append(columns[i] + " = ?");
+    }
+    sb.append(" WHERE " + SQLiteHelper.C_ID + " = ?");
+    return sb.toString();
+  }
+
+  static String insertOrReplaceSql(String table) {
+    String parent = SQLiteHelper.getParentTable(table);
+    if (parent == null) {
+      return "INSERT OR REPLACE INTO " + table + " (" + SQLiteHelper.C_ID
+          + ") VALUES (?)";
+    }
+    return "INSERT OR REPLACE INTO " + table + " (" + SQLiteHelper.C_ID
+        + ") SELECT " + SQLiteHelper.C_ID + " FROM " + parent + " WHERE "
+        + SQLiteHelper.C_ID + " = ?";
+  }
+
+  static String deleteSql(String table) {
+    return "DELETE FROM " + table + " WHERE " + SQLiteHelper.C_ID + " = ?";
+  }
+
+  private SQLiteStatement write(String sql) {
+    SQLiteStatement statement = writes.get(sql);
+    if (statement == null) {
+      statement = database.compileStatement(sql);
+      writes.put(sql, statement);
+    }
+    return statement;
+  }
+
+  /**
+   * Releases all statements.
+   */
+  synchronized void close() {
+    for (Map<String, SQLiteStatement> tableSelects : selects.values()) {
+      for (SQLiteStatement statement : tableSelects.values()) {
+        statement.close();
+      }
+    }
+    for (SQLiteStatement statement : writes.values()) {
+      statement.close();
+    }
+    selects.clear();
+    writes.clear();
+  }
+}
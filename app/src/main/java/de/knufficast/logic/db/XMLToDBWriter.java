@@ -17,10 +17,14 @@ package de.knufficast.logic.db;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 import de.knufficast.App;
+import de.knufficast.events.NewEpisodeEvent;
+import de.knufficast.logic.xml.EpisodeSink;
 import de.knufficast.logic.xml.FeedPostProcessor;
 import de.knufficast.logic.xml.XMLEpisode;
 import de.knufficast.logic.xml.XMLFeed;
@@ -30,94 +34,221 @@ import de.knufficast.logic.xml.XMLFeed;
  * the existing feeds in the database. (i.e. here happens the conversion from
  * XMLFeed/XMLEpisode to DBFeed/DBEpisode)
  * 
+ * The episodes arrive one by one while the feed is parsed (see
+ * {@link EpisodeSink}). New ones are compressed and written to the staging
+ * table in small batches, so that a large feed never is in memory as a whole.
+ * When the feed ends, they are moved to the episode tables in one transaction,
+ * oldest first, so that newer episodes get higher IDs.
+ * 
+ * Feeds list their newest episodes first. So when refreshing, parsing stops
+ * after a number of known episodes in a row, unless the feed is marked to be
+ * read completely (see {@link DBFeed#isReadAll}).
+ * 
+ * Episodes that {@link EpisodeRetention} has deleted count as known, so that
+ * they aren't added again. When a feed has been read to its end, the deleted
+ * episodes that it doesn't list anymore are forgotten.
+ * 
  * @author crazywater
  * 
  */
-public class XMLToDBWriter {
+public class XMLToDBWriter implements EpisodeSink {
+  // episodes that are written to the staging table at once
+  private static final int BATCH_SIZE = 20;
+  // known episodes in a row after which the rest of a feed is skipped
+  private static final int MAX_KNOWN_IN_A_ROW = 10;
+
+  private static final String ID = SQLiteHelper.C_ID;
+  private static final String EPISODES = SQLiteHelper.TABLE_EPISODES;
+  private static final String STAGING = SQLiteHelper.TABLE_EPISODE_STAGING;
+  private static final String FEED_ID = SQLiteHelper.C_EP_FEED_ID;
+  private static final String FINGERPRINT = SQLiteHelper.C_EP_FINGERPRINT;
+  private static final String WRITER = SQLiteHelper.C_ST_WRITER;
+  private static final String DESCRIPTION = SQLiteHelper.C_EP_DESCRIPTION;
+  private static final String CONTENT = SQLiteHelper.C_EP_CONTENT;
+  private static final String COLUMNS = SQLiteHelper.C_EP_DATA_URL + ", "
+      + SQLiteHelper.C_EP_FLATTR_URL + ", " + SQLiteHelper.C_EP_GUID + ", "
+      + SQLiteHelper.C_EP_IMG_URL + ", " + SQLiteHelper.C_EP_TITLE + ", "
+      + FINGERPRINT;
+
+  private static final String[] STAGING_COLUMNS = { WRITER,
+      SQLiteHelper.C_EP_DATA_URL, SQLiteHelper.C_EP_FLATTR_URL,
+      SQLiteHelper.C_EP_GUID, SQLiteHelper.C_EP_IMG_URL,
+      SQLiteHelper.C_EP_TITLE, FINGERPRINT, DESCRIPTION, CONTENT };
+
+  // args: feed ID, added, writer
+  static final String MOVE_EPISODES = "INSERT INTO " + EPISODES + " ("
+      + COLUMNS + ", " + FEED_ID + ", " + SQLiteHelper.C_EP_ADDED
+      + ") SELECT " + COLUMNS + ", ?, ? FROM " + STAGING + " WHERE " + WRITER
+      + " = ? ORDER BY " + ID + " DESC";
+  // args: is new, the highest episode ID before the move
+  static final String ADD_STATES = "INSERT INTO "
+      + SQLiteHelper.TABLE_EPISODE_STATE + " (" + ID + ", "
+      + SQLiteHelper.C_EP_IS_NEW + ") SELECT " + ID + ", ? FROM " + EPISODES
+      + " WHERE " + ID + " > ?";
+  // args: feed ID, writer
+  static final String MOVE_NOTES = "INSERT INTO "
+      + SQLiteHelper.TABLE_EPISODE_NOTES + " (" + ID + ", " + DESCRIPTION
+      + ", " + CONTENT + ") SELECT e." + ID + ", nullif(s." + DESCRIPTION
+      + ", ''), nullif(s." + CONTENT + ", '') FROM " + STAGING + " s JOIN "
+      + EPISODES + " e ON e." + FEED_ID + " = ? AND e." + FINGERPRINT + " = s."
+      + FINGERPRINT + " WHERE s." + WRITER + " = ? AND (s." + DESCRIPTION
+      + " != '' OR s." + CONTENT + " != '')";
+  static final String MAX_ID = "SELECT max(" + ID + ") FROM "
+      + EPISODES;
+  static final String NEW_IDS = "SELECT " + ID + " FROM " + EPISODES
+      + " WHERE " + ID + " > ? ORDER BY " + ID;
+  static final String CLEAR = "DELETE FROM " + STAGING + " WHERE "
+      + WRITER + " = ?";
+  // args: feed ID, fingerprint
+  static final String FORGET_DELETED = "DELETE FROM "
+      + SQLiteHelper.TABLE_DELETED_EPISODES + " WHERE " + FEED_ID
+      + " = ? AND " + FINGERPRINT + " = ?";
+
+  // tells apart the staged episodes of feeds that are parsed at the same time
+  private static final AtomicLong nextWriter = new AtomicLong(1);
+
   private final Database db = App.get().getDB();
   private final FeedPostProcessor postProcessor = new FeedPostProcessor();
+  private final boolean merge;
+  private final List<Long> inserted = new ArrayList<Long>();
+
+  // the feed that is being parsed
+  private Long writer;
+  private DBFeed feed;
+  private boolean skip;
+  private boolean readAll;
+  private int knownInARow;
+  // whether parsing stopped before the end of the feed
+  private boolean stopped;
+  private final Set<Long> known = new HashSet<Long>();
+  // deleted episodes (see EpisodeRetention) that the feed hasn't listed
+  private final Set<Long> deleted = new HashSet<Long>();
+  private final List<Object[]> batch = new ArrayList<Object[]>(BATCH_SIZE);
 
   /**
-   * Newly adds feeds to the database.
+   * @param merge
+   *          true to merge the feeds with the ones in the database and mark
+   *          their new episodes as new, false to only add feeds that aren't in
+   *          the database yet
    */
-  public void addFeeds(List<XMLFeed> xmlFeeds) {
-    postProcessor.process(xmlFeeds);
-    for (XMLFeed xmlFeed : xmlFeeds) {
-      // check if this feed already exists
-      List<Long> ids = db.query(SQLiteHelper.TABLE_FEEDS,
-          SQLiteHelper.C_FD_FEED_URL, xmlFeed.getDataUrl());
-      if (ids.isEmpty()) {
-        DBFeed feed = createFeed(xmlFeed);
-        // reverse the episodes, so we insert the oldest first
-        List<XMLEpisode> episodes = xmlFeed.getEpisodes();
-        Collections.reverse(episodes);
-        for (XMLEpisode tempEpisode : episodes) {
-          DBEpisode ep = createEpisode(feed, tempEpisode);
-          ep.setNew(false);
-        }
+  public XMLToDBWriter(boolean merge) {
+    this.merge = merge;
+  }
+
+  @Override
+  public void startFeed(XMLFeed xmlFeed) {
+    writer = nextWriter.getAndIncrement();
+    known.clear();
+    deleted.clear();
+    batch.clear();
+    // check if this feed already exists
+    long[] feedIds = db.query(SQLiteHelper.TABLE_FEEDS,
+        SQLiteHelper.C_FD_FEED_URL, xmlFeed.getDataUrl());
+    feed = feedIds.length == 0 ? null : DBFeed.get(feedIds[0]);
+    skip = feed != null && !merge;
+    readAll = feed == null || feed.isReadAll();
+    knownInARow = 0;
+    stopped = false;
+    if (feed != null && !skip) {
+      String feedId = String.valueOf(feed.getId());
+      for (long fingerprint : db.queryLongs(EPISODES, FINGERPRINT, FEED_ID,
+          feedId)) {
+        known.add(fingerprint);
+      }
+      // episodes that EpisodeRetention has deleted stay deleted
+      for (long fingerprint : db.queryLongs(
+          SQLiteHelper.TABLE_DELETED_EPISODES, FINGERPRINT, FEED_ID, feedId)) {
+        known.add(fingerprint);
+        deleted.add(fingerprint);
       }
     }
   }
 
-  /**
-   * Merges feeds with existing feeds in the database.
-   */
-  public void mergeFeeds(List<XMLFeed> tempFeeds) {
-    postProcessor.process(tempFeeds);
-    for (XMLFeed tempFeed : tempFeeds) {
-      List<Long> feedIds = db.query(SQLiteHelper.TABLE_FEEDS, SQLiteHelper.C_FD_FEED_URL, tempFeed.getDataUrl());
-      DBFeed feed;
-      if (feedIds.isEmpty()) {
-        feed = createFeed(tempFeed);
-      } else {
-        feed = new DBFeed(feedIds.get(0));
-        // update the etag
-        String eTag = tempFeed.getETag();
-        if (eTag != null) {
-          feed.setETag(eTag);
+  @Override
+  public boolean addEpisode(XMLFeed xmlFeed, XMLEpisode episode) {
+    if (skip) {
+      return false;
+    }
+    long fingerprint = DBEpisode.fingerprint(episode.getGuid(),
+        episode.getDataUrl(), episode.getTitle());
+    deleted.remove(fingerprint);
+    if (!known.add(fingerprint)) {
+      knownInARow++;
+      stopped = !readAll && knownInARow >= MAX_KNOWN_IN_A_ROW;
+      return !stopped;
+    }
+    knownInARow = 0;
+    postProcessor.process(episode);
+    Object[] row = { writer, episode.getDataUrl(), episode.getFlattrUrl(),
+        episode.getGuid(), episode.getImgUrl(), episode.getTitle(),
+        fingerprint, ShowNotes.compress(episode.getDescription()),
+        ShowNotes.compress(episode.getContent()) };
+    batch.add(row);
+    if (batch.size() == BATCH_SIZE) {
+      flushBatch();
+    }
+    return true;
+  }
+
+  @Override
+  public void endFeed(final XMLFeed xmlFeed) {
+    if (skip) {
+      return;
+    }
+    flushBatch();
+    db.runInTransaction(new Runnable() {
+      @Override
+      public void run() {
+        if (feed == null) {
+          feed = createFeed(xmlFeed);
+        } else if (xmlFeed.getETag() != null) {
+          feed.setETag(xmlFeed.getETag());
         }
-      }
-      List<XMLEpisode> newEpisodes = new ArrayList<XMLEpisode>();
-      for (XMLEpisode tempEpisode : tempFeed.getEpisodes()) {
-        // get all episode ids with this guid
-        List<Long> ids = db.query(SQLiteHelper.TABLE_EPISODES,
-            SQLiteHelper.C_EP_GUID, tempEpisode.getGuid());
-        boolean found = false;
-        for (long id : ids) {
-          DBEpisode ep = new DBEpisode(id);
-          DBFeed dbFeed = ep.getFeed();
-          // check if this episode's feed url matches ours
-          if (dbFeed.getFeedUrl().equals(tempFeed.getDataUrl())) {
-            found = true;
-            break;
+        Long feedId = feed.getId();
+        // the new episodes get higher IDs than all existing ones
+        Long maxId = db.selectLongs(MAX_ID)[0];
+        db.execute(MOVE_EPISODES, feedId, System.currentTimeMillis(), writer);
+        db.execute(ADD_STATES, merge ? 1L : 0L, maxId);
+        db.execute(MOVE_NOTES, feedId, writer);
+        db.execute(CLEAR, writer);
+        if (!stopped) {
+          // the feed doesn't list these anymore, so they can't come back
+          for (long fingerprint : deleted) {
+            db.execute(FORGET_DELETED, feedId, fingerprint);
           }
         }
-        if (!found) {
-          newEpisodes.add(tempEpisode);
+        for (long id : db.selectLongs(NEW_IDS, String.valueOf(maxId))) {
+          inserted.add(id);
         }
       }
-      // reverse so we have the newest episodes first
-      Collections.reverse(newEpisodes);
-      for (XMLEpisode tempEpisode : newEpisodes) {
-        DBEpisode ep = createEpisode(feed, tempEpisode);
-        ep.setNew(true);
-      }
+    });
+  }
+
+  /**
+   * Call after parsing. Fires a {@link NewEpisodeEvent} if feeds have been
+   * merged and there are new episodes.
+   * 
+   * @return the IDs of the episodes that have been inserted
+   */
+  public long[] finish() {
+    long[] result = new long[inserted.size()];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = inserted.get(i);
+    }
+    if (merge && result.length > 0) {
+      App.get().getEventBus().fireEvent(new NewEpisodeEvent(result));
     }
+    return result;
   }
 
-  private DBEpisode createEpisode(DBFeed feed, XMLEpisode tempEpisode) {
-    String[] values = { tempEpisode.getDataUrl(), tempEpisode.getDescription(),
-        tempEpisode.getFlattrUrl(), tempEpisode.getGuid(),
-        tempEpisode.getImgUrl(), tempEpisode.getTitle(),
-        String.valueOf(feed.getId()), tempEpisode.getContent() };
-    String[] columns = { SQLiteHelper.C_EP_DATA_URL,
-        SQLiteHelper.C_EP_DESCRIPTION, SQLiteHelper.C_EP_FLATTR_URL,
-        SQLiteHelper.C_EP_GUID, SQLiteHelper.C_EP_IMG_URL,
-        SQLiteHelper.C_EP_TITLE, SQLiteHelper.C_EP_FEED_ID,
-        SQLiteHelper.C_EP_CONTENT };
-    long episodeId = db.create(SQLiteHelper.TABLE_EPISODES,
-        Arrays.asList(columns), Arrays.asList(values));
-    return new DBEpisode(episodeId);
+  /**
+   * Writes the batch to the staging table, in one transaction.
+   */
+  private void flushBatch() {
+    if (!batch.isEmpty()) {
+      db.createAll(STAGING, STAGING_COLUMNS, batch);
+      batch.clear();
+    }
   }
 
   private DBFeed createFeed(XMLFeed tempFeed) {
@@ -130,6 +261,6 @@ public class XMLToDBWriter {
         tempFeed.getTitle(), String.valueOf(tempFeed.getLastUpdated()) };
     long feedId = db.create(SQLiteHelper.TABLE_FEEDS, Arrays.asList(columns),
         Arrays.asList(values));
-    return new DBFeed(feedId);
+    return DBFeed.get(feedId);
   }
 }
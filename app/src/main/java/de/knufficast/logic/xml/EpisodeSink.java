@@ -0,0 +1,46 @@
+/*******************************************************************************
+ * Copyright 2012 Crazywater
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package de.knufficast.logic.xml;
+
+/**
+ * Receives the episodes of a feed one by one while the feed is parsed, so that
+ * they don't all have to be kept in memory (see
+ * {@link de.knufficast.logic.RssParser}).
+ * 
+ * @author crazywater
+ * 
+ */
+public interface EpisodeSink {
+  /**
+   * Called when a feed starts. Only its URL, timestamp, ETag and encoding are
+   * known at this point.
+   */
+  void startFeed(XMLFeed feed);
+
+  /**
+   * Called for each episode of the feed once it is parsed completely.
+   * 
+   * @return false if the rest of the feed isn't needed, e.g. because only
+   *         known episodes follow. Parsing stops then.
+   */
+  boolean addEpisode(XMLFeed feed, XMLEpisode episode);
+
+  /**
+   * Called when the feed ends, or when parsing stops early. The rest of the
+   * feed is known now, as far as it has been parsed.
+   */
+  void endFeed(XMLFeed feed);
+}
@@ -18,13 +18,10 @@ package de.knufficast.logic.xml;
 import java.io.IOException;
 import java.io.StringReader;
 import java.util.List;
-import java.util.Map;
-import java.util.Set;
 
 import org.xmlpull.v1.XmlPullParserException;
 
 import de.knufficast.logic.XmlParser;
-import de.knufficast.util.SetUtil;
 
 /**
  * A class to post-process feeds after downloading them. For now only used to
@@ -34,24 +31,29 @@ import de.knufficast.util.SetUtil;
  * 
  */
 public class FeedPostProcessor extends XmlParser {
-  private static final Set<String> whitelist = SetUtil.hash("p", "a", "li",
-      "ol", "ul", "span", "div", "i", "u", "b", "strong", "em", "blockquote",
-      "center", "bdi", "bdo", "br", "cite", "code", "hr", "q", "small", "sub",
-      "sup");
+  // the tags that are kept, followed by img
+  private static final String[] TAGS = { "p", "a", "li", "ol", "ul", "span",
+      "div", "i", "u", "b", "strong", "em", "blockquote", "center", "bdi",
+      "bdo", "br", "cite", "code", "hr", "q", "small", "sub", "sup", "img" };
+  private static final int IMG_TAG = TAGS.length;
 
   private XMLEpisode episode;
   private StringBuilder stringBuilder;
-  
+
+  public FeedPostProcessor() {
+    super(TAGS);
+  }
+
   public void process(List<XMLFeed> feeds) {
     for (XMLFeed feed : feeds) {
       for (XMLEpisode episode : feed.getEpisodes()) {
-        this.episode = episode;
-        processEpisode();
+        process(episode);
       }
     }
   }
 
-  private void processEpisode() {
+  public void process(XMLEpisode episode) {
+    this.episode = episode;
     try {
       String content = episode.getContent();
       if (!"".equals(content)) {
@@ -60,42 +62,53 @@ public class FeedPostProcessor extends XmlParser {
         episode.setContent(stringBuilder.toString());
       }
     } catch (XmlPullParserException e) {
-      episode.setContent("");
+      // e.g. cut off by the parser (see RssParser#setMaxNotesLength): keep
+      // what could be cleaned up
+      episode.setContent(stringBuilder.toString());
     } catch (IOException e) {
       episode.setContent("");
     }
   }
 
   @Override
-  protected void openTag(String tag, Map<String, String> attributes) {
-    if (whitelist.contains(tag)) {
-      stringBuilder.append("<" + tag);
-      for (Map.Entry<String, String> entry : attributes.entrySet()) {
-        stringBuilder.append(" " + entry.getKey() + "=" + "'"
-            + entry.getValue() + "'");
+  protected void openTag(int tag) {
+    if (isWhitelisted(tag)) {
+      stringBuilder.append('<').append(getTagName(tag));
+      for (int i = 0; i < getAttributeCount(); i++) {
+        stringBuilder.append(' ').append(getAttributeName(i)).append("='")
+            .append(getAttributeValue(i)).append('\'');
       }
-      stringBuilder.append(">");
-    } else if ("".equals(episode.getImgUrl()) && "img".equals(tag)) {
-      if (attributes.containsKey("src")) {
-        episode.setImgUrl(attributes.get("src"));
+      stringBuilder.append('>');
+    } else if ("".equals(episode.getImgUrl()) && tag == IMG_TAG) {
+      String src = getAttribute("src");
+      if (src != null) {
+        episode.setImgUrl(src);
       }
     }
   }
 
   @Override
-  protected void closeTag(String tag) {
-    if (whitelist.contains(tag)) {
+  protected void closeTag(int tag) {
+    if (isWhitelisted(tag)) {
       stringBuilder.append("</");
-      stringBuilder.append(tag);
+      stringBuilder.append(getTagName(tag));
       stringBuilder.append(">");
     }
   }
 
+  @Override
+  protected int getMaxTextLength(int tag) {
+    return isWhitelisted(tag) ? Integer.MAX_VALUE : 0;
+  }
+
   @Override
   protected void tagText(String text) {
-    String tag = getCurrentTag();
-    if (whitelist.contains(tag)) {
+    if (isWhitelisted(getCurrentTag())) {
       stringBuilder.append(text);
     }
   }
+
+  private static boolean isWhitelisted(int tag) {
+    return tag != OTHER_TAG && tag != IMG_TAG;
+  }
 }
@@ -100,6 +100,8 @@ public class PlayerService extends Service {
         episode.setSeekLocation(currentPosition);
       }
       mediaPlayer.pause();
+      // the user might not come back for a while, persist the position
+      App.get().getDB().flushAsync();
     }
   }
 
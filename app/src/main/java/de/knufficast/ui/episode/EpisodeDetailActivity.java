@@ -16,7 +16,9 @@
 package de.knufficast.ui.episode;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 
 import android.content.Intent;
 import android.os.Bundle;
@@ -32,19 +34,22 @@ import de.knufficast.App;
 import de.knufficast.R;
 import de.knufficast.flattr.FlattrApi;
 import de.knufficast.logic.db.DBEpisode;
-import de.knufficast.logic.db.DBFeed;
 import de.knufficast.logic.db.Database;
+import de.knufficast.logic.db.Row;
 import de.knufficast.logic.db.SQLiteHelper;
 import de.knufficast.logic.db.DBEpisode.FlattrState;
 import de.knufficast.ui.main.MainActivity;
 import de.knufficast.ui.settings.SettingsActivity;
 import de.knufficast.util.BooleanCallback;
+import de.knufficast.util.Callback;
+import de.knufficast.util.Function;
 import de.knufficast.util.NetUtil;
 import de.knufficast.watchers.QueueDownloader;
 
 /**
  * An activity that displays details about episodes, either in a feed or the
- * queue. The user can flick through the different episodes.
+ * queue. The user can flick through the different episodes. The episodes are
+ * read in the background.
  * 
  * @author crazywater
  */
@@ -60,6 +65,8 @@ public class EpisodeDetailActivity extends FragmentActivity {
   private EpisodesPagerAdapter sectionsPagerAdapter;
 
   private final List<DBEpisode> episodes = new ArrayList<DBEpisode>();
+  // snapshots of the episodes for the page titles, by ID
+  private Map<Long, Row> rows = Collections.emptyMap();
 
   @Override
   public boolean onCreateOptionsMenu(Menu menu) {
@@ -77,30 +84,47 @@ public class EpisodeDetailActivity extends FragmentActivity {
     db = App.get().getDB();
 
     Long episodeId = getIntent().getExtras().getLong(EPISODE_ID_INTENT);
-    boolean queuePaging = getIntent().getExtras().getBoolean(
+    final boolean queuePaging = getIntent().getExtras().getBoolean(
         REQUEST_QUEUE_PAGING_INTENT);
-    episodes.clear();
-    currentEpisode = new DBEpisode(episodeId);
-    if (queuePaging) {
-      // if we have queue paging, set the episodes according to the queue
-      episodes.addAll(App.get().getQueue().asList());
-    } else {
-      // we have feed paging, page through the feed
-      List<Long> ids = db.query(SQLiteHelper.TABLE_EPISODES,
-          SQLiteHelper.C_EP_FEED_ID,
-          String.valueOf(currentEpisode.getFeed().getId()));
-      for (long id : ids) {
-        episodes.add(new DBEpisode(id));
+    currentEpisode = DBEpisode.get(episodeId);
+    final DBEpisode firstEpisode = currentEpisode;
+    db.readAsync(new Function<Database, Pages>() {
+      @Override
+      public Pages call(Database db) {
+        Pages pages = new Pages();
+        if (queuePaging) {
+          // if we have queue paging, set the episodes according to the queue
+          pages.episodes = App.get().getQueue().asList();
+        } else {
+          // we have feed paging, page through the feed
+          pages.episodes = new ArrayList<DBEpisode>();
+          long[] ids = db.query(SQLiteHelper.TABLE_EPISODES,
+              SQLiteHelper.C_EP_FEED_ID,
+              String.valueOf(firstEpisode.getFeed().getId()));
+          for (long id : ids) {
+            pages.episodes.add(DBEpisode.get(id));
+          }
+        }
+        pages.rows = DBEpisode.snapshot(db, pages.episodes);
+        return pages;
       }
-    }
+    }, new Callback<Pages>() {
+      @Override
+      public void call(Pages pages) {
+        if (isFinishing()) {
+          return;
+        }
+        episodes.clear();
+        episodes.addAll(pages.episodes);
+        rows = pages.rows;
+        showPages();
+      }
+    });
   }
 
-  @Override
-  public void onStart() {
-    super.onStart();
+  private void showPages() {
     viewPager = (ViewPager) findViewById(R.id.episode_detail_pager);
-    sectionsPagerAdapter = new EpisodesPagerAdapter(
-        getSupportFragmentManager(), currentEpisode.getFeed());
+    sectionsPagerAdapter = new EpisodesPagerAdapter(getSupportFragmentManager());
 
     viewPager.setAdapter(sectionsPagerAdapter);
     viewPager.setCurrentItem(episodes.indexOf(currentEpisode));
@@ -115,29 +139,44 @@ public class EpisodeDetailActivity extends FragmentActivity {
   }
 
   private void requestFlattrUpdate() {
-    if (currentEpisode.hasFlattr()) {
-      NetUtil netUtil = new NetUtil(this);
-      if (netUtil.isOnline()) {
-        // check if the flattr state has changed
-        FlattrApi flattrApi = new FlattrApi();
-        final DBEpisode episode = currentEpisode;
-        flattrApi.isFlattred(episode.getFlattrUrl(),
-            new BooleanCallback<Boolean, String>() {
-              @Override
-              public void success(Boolean flattred) {
-                if (episode.getFlattrState() != FlattrState.ENQUEUED
-                    || flattred) {
-                  episode.setFlattrState(flattred ? FlattrState.FLATTRED
-                      : FlattrState.NONE);
-                }
-              }
+    final DBEpisode episode = currentEpisode;
+    db.readAsync(new Function<Database, String>() {
+      @Override
+      public String call(Database db) {
+        return episode.getFlattrUrl();
+      }
+    }, new Callback<String>() {
+      @Override
+      public void call(String flattrUrl) {
+        if (!"".equals(flattrUrl)) {
+          requestFlattrUpdate(episode, flattrUrl);
+        }
+      }
+    });
+  }
 
-              @Override
-              public void fail(String error) {
-                // do nothing, might just not have a good connection...
+  private void requestFlattrUpdate(final DBEpisode episode, String flattrUrl) {
+    NetUtil netUtil = new NetUtil(this);
+    if (netUtil.isOnline()) {
+      // check if the flattr state has changed
+      FlattrApi flattrApi = new FlattrApi();
+      flattrApi.isFlattred(flattrUrl,
+          new BooleanCallback<Boolean, String>() {
+            @Override
+            public void success(Boolean flattred) {
+              // called in the background
+              if (episode.getFlattrState() != FlattrState.ENQUEUED
+                  || flattred) {
+                episode.setFlattrState(flattred ? FlattrState.FLATTRED
+                    : FlattrState.NONE);
               }
-            });
-      }
+            }
+
+            @Override
+            public void fail(String error) {
+              // do nothing, might just not have a good connection...
+            }
+          });
     }
   }
 
@@ -169,7 +208,7 @@ public class EpisodeDetailActivity extends FragmentActivity {
   }
 
   public class EpisodesPagerAdapter extends FragmentPagerAdapter {
-    public EpisodesPagerAdapter(FragmentManager fm, DBFeed feed) {
+    public EpisodesPagerAdapter(FragmentManager fm) {
       super(fm);
     }
 
@@ -187,7 +226,16 @@ public class EpisodeDetailActivity extends FragmentActivity {
 
     @Override
     public CharSequence getPageTitle(int position) {
-      return episodes.get(position).getTitle();
+      return rows.get(episodes.get(position).getId()).getString(
+          SQLiteHelper.C_EP_TITLE);
     }
   }
+
+  /**
+   * The episodes to page through and their snapshots, read in the background.
+   */
+  private static class Pages {
+    List<DBEpisode> episodes;
+    Map<Long, Row> rows;
+  }
 }
@@ -16,6 +16,7 @@
 package de.knufficast.ui.episode;
 
 import java.text.DecimalFormat;
+import java.util.Collections;
 
 import android.R.color;
 import android.os.Bundle;
@@ -39,19 +40,31 @@ import de.knufficast.logic.db.DBEpisode.DownloadState;
 import de.knufficast.logic.db.DBEpisode.FlattrState;
 import de.knufficast.logic.db.DBEpisode.PlayState;
 import de.knufficast.logic.db.DBFeed;
+import de.knufficast.logic.db.Database;
 import de.knufficast.logic.db.Queue;
+import de.knufficast.logic.db.Row;
+import de.knufficast.logic.db.SQLiteHelper;
 import de.knufficast.ui.BaseFragment;
+import de.knufficast.util.Callback;
+import de.knufficast.util.Function;
 import de.knufficast.util.TimeUtil;
 
 /**
- * A fragment to show detailed information about a single episode.
+ * A fragment to show detailed information about a single episode. It is drawn
+ * from snapshots that are read in the background, so it never touches the
+ * database on the UI thread.
  * 
  * @author crazywater
  */
 public class EpisodeDetailFragment extends BaseFragment {
   private static final String EPISODE_ID = "EpisodeID";
   private DBEpisode episode;
-  private DBFeed feed;
+  // snapshots of the episode and its feed, null until they are read
+  private Row details;
+  private Row feed;
+  // the last known listening progress
+  private int played;
+  private int duration;
   private EventBus eventBus;
 
   private Queue queue;
@@ -75,7 +88,7 @@ public class EpisodeDetailFragment extends BaseFragment {
     @Override
     public void onEvent(EpisodeDownloadProgressEvent event) {
       if (event.getIdentifier() == episode.getId()) {
-        updateDownloadState();
+        loadState();
       }
     }
   };
@@ -83,12 +96,7 @@ public class EpisodeDetailFragment extends BaseFragment {
     @Override
     public void onEvent(EpisodeDownloadStateEvent event) {
       if (event.getIdentifier() == episode.getId()) {
-        runOnUiThread(new Runnable() {
-          @Override
-          public void run() {
-            updateDownloadState();
-          }
-        });
+        loadState();
       }
     }
   };
@@ -100,7 +108,9 @@ public class EpisodeDetailFragment extends BaseFragment {
           @Override
           public void run() {
             if (episode.equals(event.getEpisode())) {
-              updatePlayingState(event.getProgress(), event.getTotal());
+              played = event.getProgress();
+              duration = event.getTotal();
+              loadState();
             }
           }
         });
@@ -110,12 +120,7 @@ public class EpisodeDetailFragment extends BaseFragment {
   private Listener<FlattrStateEvent> flattrStateListener = new Listener<FlattrStateEvent>() {
     @Override
     public void onEvent(final FlattrStateEvent event) {
-      runOnUiThread(new Runnable() {
-        @Override
-        public void run() {
-          updateFlattringState();
-        }
-      });
+      loadState();
     }
   };
 
@@ -136,6 +141,10 @@ public class EpisodeDetailFragment extends BaseFragment {
     enqueueButton.setOnClickListener(new OnClickListener() {
       @Override
       public void onClick(View v) {
+        if (details == null) {
+          // not read yet
+          return;
+        }
         if (queue.contains(episode)) {
           queue.remove(episode);
         } else {
@@ -155,7 +164,7 @@ public class EpisodeDetailFragment extends BaseFragment {
     eventBus.addListener(FlattrStateEvent.class, flattrStateListener);
 
     description.setBackgroundColor(color.background_light);
-    updateState();
+    loadDetails();
   }
 
   @Override
@@ -173,9 +182,8 @@ public class EpisodeDetailFragment extends BaseFragment {
   public void onCreate(Bundle savedInstanceState) {
     super.onCreate(savedInstanceState);
     if (savedInstanceState != null) {
-      episode = new DBEpisode(savedInstanceState.getLong(EPISODE_ID));
+      episode = DBEpisode.get(savedInstanceState.getLong(EPISODE_ID));
     }
-    feed = episode.getFeed();
     queue = App.get().getQueue();
   }
 
@@ -188,20 +196,85 @@ public class EpisodeDetailFragment extends BaseFragment {
     bundle.putLong(EPISODE_ID, episode.getId());
   }
 
+  /**
+   * Reads the episode, its show notes and its feed in the background and shows
+   * them when they arrive.
+   */
+  private void loadDetails() {
+    final DBEpisode shown = episode;
+    App.get().getDB().readAsync(new Function<Database, Snapshot>() {
+      @Override
+      public Snapshot call(Database db) {
+        Snapshot snapshot = new Snapshot();
+        snapshot.episode = DBEpisode.snapshotDetails(db, shown);
+        DBFeed shownFeed = DBFeed.get(snapshot.episode
+            .getLong(SQLiteHelper.C_EP_FEED_ID));
+        snapshot.feed = DBFeed.snapshot(db,
+            Collections.singletonList(shownFeed)).get(shownFeed.getId());
+        return snapshot;
+      }
+    }, new Callback<Snapshot>() {
+      @Override
+      public void call(Snapshot snapshot) {
+        details = snapshot.episode;
+        feed = snapshot.feed;
+        played = details.getInt(SQLiteHelper.C_EP_SEEK_LOCATION);
+        duration = details.getInt(SQLiteHelper.C_EP_DURATION);
+        if (isAdded()) {
+          updateState();
+        }
+      }
+    });
+  }
+
+  /**
+   * Re-reads the state of the episode in the background, e.g. after a download
+   * progressed, and shows it when it arrives.
+   */
+  private void loadState() {
+    final DBEpisode shown = episode;
+    App.get().getDB().readAsync(new Function<Database, Row>() {
+      @Override
+      public Row call(Database db) {
+        return DBEpisode.snapshot(db, Collections.singletonList(shown)).get(
+            shown.getId());
+      }
+    }, new Callback<Row>() {
+      @Override
+      public void call(Row state) {
+        if (details == null || !isAdded()) {
+          // the details will show the state when they arrive
+          return;
+        }
+        details = details.with(state);
+        updateDownloadState();
+        updatePlayingState(played, duration);
+        updateFlattringState();
+        updateButton();
+      }
+    });
+  }
+
   private void updateState() {
-    title.setText(episode.getTitle());
-    String contentType = feed.getEncoding() == null ? "text/html"
-        : "text/html; charset=" + feed.getEncoding();
-    String content = episode.getContent();
+    title.setText(details.getString(SQLiteHelper.C_EP_TITLE));
+    String encoding = feed.getString(SQLiteHelper.C_FD_ENCODING);
+    if ("".equals(encoding)) {
+      encoding = null;
+    }
+    String contentType = encoding == null ? "text/html"
+        : "text/html; charset=" + encoding;
+    String content = details.getString(SQLiteHelper.C_EP_CONTENT);
     if ("".equals(content)) {
-      content = episode.getDescription();
+      content = details.getString(SQLiteHelper.C_EP_DESCRIPTION);
+    }
+    description.loadData(content, contentType, encoding);
+    String imgUrl = details.getString(SQLiteHelper.C_EP_IMG_URL);
+    if ("".equals(imgUrl)) {
+      imgUrl = feed.getString(SQLiteHelper.C_FD_IMG_URL);
     }
-    description.loadData(content, contentType, feed.getEncoding());
-    String imgUrl = episode.getImgUrl() != null ? episode.getImgUrl() : feed
-        .getImgUrl();
     icon.setImageDrawable(App.get().getImageCache().getResource(imgUrl));
     updateDownloadState();
-    updatePlayingState(episode.getSeekLocation(), episode.getDuration());
+    updatePlayingState(played, duration);
     updateFlattringState();
     updateButton();
   }
@@ -215,7 +288,7 @@ public class EpisodeDetailFragment extends BaseFragment {
   public void updatePlayingState(int played, int duration) {
     String text = "";
     int progress = 0;
-    PlayState state = episode.getPlayState();
+    PlayState state = DBEpisode.getPlayState(details);
     if (state == PlayState.NONE) {
       text = getString(R.string.playing_state_none);
       progress = 0;
@@ -226,30 +299,32 @@ public class EpisodeDetailFragment extends BaseFragment {
     } else if (state == PlayState.FINISHED) {
       progress = 100;
     }
-    if (episode.getDownloadState() == DownloadState.FINISHED && state != PlayState.FINISHED) {
+    if (DBEpisode.getDownloadState(details) == DownloadState.FINISHED
+        && state != PlayState.FINISHED) {
       episodeState.setText(text);
     }
     setProgress(listeningProgress, listeningProgressText, progress);
   }
 
   public void updateFlattringState() {
-    if (episode.hasFlattr()) {
+    if (DBEpisode.hasFlattr(details)) {
       int progress = 0;
       String text = "";
-      if (episode.getFlattrState() == FlattrState.NONE) {
+      FlattrState state = DBEpisode.getFlattrState(details);
+      if (state == FlattrState.NONE) {
         text = getString(R.string.flattring_state_none);
         progress = 0;
-      } else if (episode.getFlattrState() == FlattrState.ENQUEUED) {
+      } else if (state == FlattrState.ENQUEUED) {
         text = getString(R.string.flattring_state_enqueued);
         progress = 50;
-      } else if (episode.getFlattrState() == FlattrState.ERROR) {
+      } else if (state == FlattrState.ERROR) {
         text = getString(R.string.flattring_state_error);
         progress = 100;
-      } else if (episode.getFlattrState() == FlattrState.FLATTRED) {
+      } else if (state == FlattrState.FLATTRED) {
         text = getString(R.string.flattring_state_flattred);
         progress = 100;
       }
-      if (episode.getPlayState() == PlayState.FINISHED) {
+      if (DBEpisode.getPlayState(details) == PlayState.FINISHED) {
         episodeState.setText(text);
       }
       setProgress(flattringProgress, flattringProgressText, progress);
@@ -260,16 +335,17 @@ public class EpisodeDetailFragment extends BaseFragment {
   }
 
   public void updateDownloadState() {
-    DownloadState state = episode.getDownloadState();
+    DownloadState state = DBEpisode.getDownloadState(details);
+    long downloadedBytes = details.getLong(SQLiteHelper.C_EP_DOWNLOADED_BYTES);
+    long totalBytes = details.getLong(SQLiteHelper.C_EP_TOTAL_BYTES);
     String text = "";
-    String downloadStatus = " (" + toMegaBytes(episode.getDownloadedBytes())
-        + "/" + toMegaBytes(episode.getTotalBytes()) + " MB)";
+    String downloadStatus = " (" + toMegaBytes(downloadedBytes) + "/"
+        + toMegaBytes(totalBytes) + " MB)";
     int progress = 0;
-    if (episode.getTotalBytes() > 0) {
-      progress = (int) (((double) 100 * episode
-          .getDownloadedBytes() / episode.getTotalBytes()));
+    if (totalBytes > 0) {
+      progress = (int) (((double) 100 * downloadedBytes / totalBytes));
     }
-    if (!episode.hasDownload()) {
+    if (!DBEpisode.hasDownload(details)) {
       text = getString(R.string.download_state_no_download);
     } else if (state == DownloadState.NONE) {
       text = getString(R.string.download_state_none);
@@ -299,7 +375,8 @@ public class EpisodeDetailFragment extends BaseFragment {
   }
 
   private void updateButton() {
-    enqueueButton.setVisibility(episode.hasDownload() ? View.VISIBLE : View.GONE);
+    enqueueButton.setVisibility(DBEpisode.hasDownload(details) ? View.VISIBLE
+        : View.GONE);
     if (queue.contains(episode)) {
       enqueueButton.setText(getString(R.string.dequeue));
     } else {
@@ -317,4 +394,12 @@ public class EpisodeDetailFragment extends BaseFragment {
   protected int getLayoutId() {
     return R.layout.fragment_episode_detail;
   }
+
+  /**
+   * The snapshots that {@link #loadDetails} reads in the background.
+   */
+  private static class Snapshot {
+    Row episode;
+    Row feed;
+  }
 }
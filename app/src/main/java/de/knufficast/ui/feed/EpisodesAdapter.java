@@ -15,7 +15,10 @@
  ******************************************************************************/
 package de.knufficast.ui.feed;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 
 import android.app.Activity;
 import android.content.Context;
@@ -29,9 +32,15 @@ import de.knufficast.App;
 import de.knufficast.R;
 import de.knufficast.logic.ImageCache;
 import de.knufficast.logic.db.DBEpisode;
+import de.knufficast.logic.db.Database;
+import de.knufficast.logic.db.Row;
+import de.knufficast.logic.db.SQLiteHelper;
+import de.knufficast.util.Callback;
+import de.knufficast.util.Function;
 
 /**
- * Adapter that transforms episodes into a list.
+ * Adapter that transforms episodes into a list. Renders from snapshots that
+ * are read in the background.
  * 
  * @author crazywater
  * 
@@ -41,6 +50,8 @@ public class EpisodesAdapter extends ArrayAdapter<DBEpisode> {
   private final int layoutResourceId;
   private final List<DBEpisode> data;
   private final ImageCache imageCache;
+  // snapshots of the shown episodes, by ID
+  private Map<Long, Row> rows = Collections.emptyMap();
 
   public EpisodesAdapter(Context context, int layoutResourceId,
       List<DBEpisode> data) {
@@ -52,6 +63,28 @@ public class EpisodesAdapter extends ArrayAdapter<DBEpisode> {
     imageCache = App.get().getImageCache();
   }
 
+  /**
+   * Tells the list about the changed data right away, and again once fresh
+   * snapshots have been read.
+   */
+  @Override
+  public void notifyDataSetChanged() {
+    final List<DBEpisode> episodes = new ArrayList<DBEpisode>(data);
+    App.get().getDB().readAsync(new Function<Database, Map<Long, Row>>() {
+      @Override
+      public Map<Long, Row> call(Database db) {
+        return DBEpisode.snapshot(db, episodes);
+      }
+    }, new Callback<Map<Long, Row>>() {
+      @Override
+      public void call(Map<Long, Row> snapshot) {
+        rows = snapshot;
+        EpisodesAdapter.super.notifyDataSetChanged();
+      }
+    });
+    super.notifyDataSetChanged();
+  }
+
   @Override
   public View getView(int position, View convertView, ViewGroup parent) {
     View row = convertView;
@@ -61,13 +94,20 @@ public class EpisodesAdapter extends ArrayAdapter<DBEpisode> {
       row = inflater.inflate(layoutResourceId, parent, false);
     }
 
-    final DBEpisode episode = data.get(position);
+    Row episode = rows.get(data.get(position).getId());
     row.setClickable(false);
 
     TextView textView = (TextView) row.findViewById(R.id.episode_list_title);
-    textView.setText(episode.getTitle());
     ImageView imageView = (ImageView) row.findViewById(R.id.episode_list_icon);
-    imageView.setImageDrawable(imageCache.getResource(episode.getImgUrl()));
+    if (episode == null) {
+      // not read yet, filled in when the snapshot arrives
+      textView.setText("");
+      imageView.setImageDrawable(imageCache.getDefaultIcon());
+      return row;
+    }
+    textView.setText(episode.getString(SQLiteHelper.C_EP_TITLE));
+    imageView.setImageDrawable(imageCache.getResource(episode
+        .getString(SQLiteHelper.C_EP_IMG_URL)));
     return row;
   }
 }
@@ -15,6 +15,8 @@
  ******************************************************************************/
 package de.knufficast.ui.feed;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 import android.app.Activity;
@@ -27,6 +29,8 @@ import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.View.OnClickListener;
+import android.widget.AbsListView;
+import android.widget.AbsListView.OnScrollListener;
 import android.widget.AdapterView;
 import android.widget.AdapterView.OnItemClickListener;
 import android.widget.ImageView;
@@ -40,9 +44,14 @@ import de.knufficast.events.Listener;
 import de.knufficast.events.NewImageEvent;
 import de.knufficast.logic.db.DBEpisode;
 import de.knufficast.logic.db.DBFeed;
+import de.knufficast.logic.db.Database;
+import de.knufficast.logic.db.Row;
+import de.knufficast.logic.db.SQLiteHelper;
 import de.knufficast.ui.episode.EpisodeDetailActivity;
 import de.knufficast.ui.main.MainActivity;
 import de.knufficast.ui.settings.SettingsActivity;
+import de.knufficast.util.Callback;
+import de.knufficast.util.Function;
 
 /**
  * Activity that displays the details of a {@link DBFeed}, including the list of
@@ -53,7 +62,9 @@ import de.knufficast.ui.settings.SettingsActivity;
  */
 public class FeedDetailActivity extends Activity {
   public static final String FEED_ID_INTENT = "feedIdIntent";
-  
+  // how many episodes are loaded at once
+  private static final int PAGE_SIZE = 50;
+
   private EpisodesAdapter episodesAdapter;
 
   private final Listener<NewImageEvent> newImageListener = new Listener<NewImageEvent>() {
@@ -65,6 +76,12 @@ public class FeedDetailActivity extends Activity {
 
   private boolean descriptionVisible = false;
   private DBFeed feed;
+  // read with the first page of episodes
+  private boolean readAll;
+  private boolean feedLoaded;
+  private final List<DBEpisode> episodes = new ArrayList<DBEpisode>();
+  private boolean allEpisodesLoaded;
+  private boolean loadingPage;
   private EventBus eventBus;
 
   @Override
@@ -87,7 +104,7 @@ public class FeedDetailActivity extends Activity {
   public void onStart() {
     super.onStart();
     long feedId = getIntent().getExtras().getLong(FEED_ID_INTENT);
-    DBFeed feed = new DBFeed(feedId);
+    DBFeed feed = DBFeed.get(feedId);
     setFeed(feed);
     eventBus = App.get().getEventBus();
     eventBus.addListener(NewImageEvent.class, newImageListener);
@@ -111,6 +128,12 @@ public class FeedDetailActivity extends Activity {
       startActivity(parentActivityIntent);
       finish();
       return true;
+    case R.id.menu_read_whole_feed:
+      // for feeds that don't list the newest episodes first
+      readAll = !item.isChecked();
+      feed.setReadAll(readAll);
+      item.setChecked(readAll);
+      return true;
     case R.id.menu_settings:
       Intent intent = new Intent(this, SettingsActivity.class);
       startActivity(intent);
@@ -138,23 +161,39 @@ public class FeedDetailActivity extends Activity {
   public boolean onCreateOptionsMenu(Menu menu) {
     MenuInflater inflater = getMenuInflater();
     inflater.inflate(R.menu.activity_feed_detail, menu);
+    MenuItem readWholeFeed = menu.findItem(R.id.menu_read_whole_feed);
+    // until the feed is read
+    readWholeFeed.setEnabled(feedLoaded);
+    readWholeFeed.setChecked(readAll);
     return true;
   }
 
   private void setFeed(DBFeed feed) {
     this.feed = feed;
-    TextView descriptionText = (TextView) findViewById(R.id.feed_description_text);
-    descriptionText.setText(feed.getDescription());
-    TextView titleText = (TextView) findViewById(R.id.feed_title_text);
-    titleText.setText(feed.getTitle());
-    ImageView feedIcon = (ImageView) findViewById(R.id.feed_icon);
-    feedIcon.setImageDrawable(App.get().getImageCache()
-        .getResource(feed.getImgUrl()));
+    feedLoaded = false;
     ListView episodeList = (ListView) findViewById(R.id.feed_episode_list);
-    final List<DBEpisode> episodes = feed.getEpisodes();
+    episodes.clear();
+    allEpisodesLoaded = false;
+    loadingPage = false;
     episodesAdapter = new EpisodesAdapter(this,
         R.layout.episode_list_item, episodes);
+    loadNextPage();
     episodeList.setAdapter(episodesAdapter);
+    episodeList.setOnScrollListener(new OnScrollListener() {
+      @Override
+      public void onScroll(AbsListView view, int firstVisibleItem,
+          int visibleItemCount, int totalItemCount) {
+        // load more while the user is still half a page away from the end
+        if (firstVisibleItem + visibleItemCount > totalItemCount - PAGE_SIZE
+            / 2) {
+          loadNextPage();
+        }
+      }
+
+      @Override
+      public void onScrollStateChanged(AbsListView view, int scrollState) {
+      }
+    });
     episodeList.setOnItemClickListener(new OnItemClickListener() {
       @Override
       public void onItemClick(AdapterView<?> arg0, View arg1, int position,
@@ -164,6 +203,65 @@ public class FeedDetailActivity extends Activity {
     });
   }
 
+  /**
+   * Shows the title, description and icon of the feed from a snapshot.
+   */
+  private void showFeed(Row row) {
+    TextView descriptionText = (TextView) findViewById(R.id.feed_description_text);
+    descriptionText.setText(row.getString(SQLiteHelper.C_FD_DESCRIPTION));
+    TextView titleText = (TextView) findViewById(R.id.feed_title_text);
+    titleText.setText(row.getString(SQLiteHelper.C_FD_TITLE));
+    ImageView feedIcon = (ImageView) findViewById(R.id.feed_icon);
+    feedIcon.setImageDrawable(App.get().getImageCache()
+        .getResource(row.getString(SQLiteHelper.C_FD_IMG_URL)));
+    readAll = row.getLong(SQLiteHelper.C_FD_READ_ALL) != 0;
+    feedLoaded = true;
+    invalidateOptionsMenu();
+  }
+
+  /**
+   * Appends the next page of episodes to the list, if there are more. The page
+   * is read in the background; only one page is loaded at a time. The first
+   * page comes with a snapshot of the feed.
+   */
+  private void loadNextPage() {
+    if (allEpisodesLoaded || loadingPage) {
+      return;
+    }
+    loadingPage = true;
+    final DBFeed pageFeed = feed;
+    final EpisodesAdapter pageAdapter = episodesAdapter;
+    final DBEpisode last = episodes.isEmpty() ? null : episodes.get(episodes
+        .size() - 1);
+    App.get().getDB().readAsync(new Function<Database, Page>() {
+      @Override
+      public Page call(Database db) {
+        Page page = new Page();
+        if (last == null) {
+          page.feed = DBFeed.snapshot(db, Collections.singletonList(pageFeed))
+              .get(pageFeed.getId());
+        }
+        page.episodes = pageFeed.getEpisodePage(last, PAGE_SIZE);
+        return page;
+      }
+    }, new Callback<Page>() {
+      @Override
+      public void call(Page page) {
+        if (pageAdapter != episodesAdapter) {
+          // the list has been reset in the meantime
+          return;
+        }
+        if (page.feed != null) {
+          showFeed(page.feed);
+        }
+        loadingPage = false;
+        allEpisodesLoaded = page.episodes.size() < PAGE_SIZE;
+        episodes.addAll(page.episodes);
+        episodesAdapter.notifyDataSetChanged();
+      }
+    });
+  }
+
   private void toggleDescription() {
     View description = findViewById(R.id.feed_description_scrollview);
     descriptionVisible = !descriptionVisible;
@@ -175,4 +273,13 @@ public class FeedDetailActivity extends Activity {
     intent.putExtra(EpisodeDetailActivity.EPISODE_ID_INTENT, episode.getId());
     startActivity(intent);
   }
+
+  /**
+   * A page of episodes, read in the background.
+   */
+  private static class Page {
+    List<DBEpisode> episodes;
+    // only with the first page
+    Row feed;
+  }
 }
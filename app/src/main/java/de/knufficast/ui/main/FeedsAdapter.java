@@ -15,7 +15,10 @@
  ******************************************************************************/
 package de.knufficast.ui.main;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 
 import android.app.Activity;
 import android.content.Context;
@@ -29,9 +32,15 @@ import de.knufficast.App;
 import de.knufficast.R;
 import de.knufficast.logic.ImageCache;
 import de.knufficast.logic.db.DBFeed;
+import de.knufficast.logic.db.Database;
+import de.knufficast.logic.db.Row;
+import de.knufficast.logic.db.SQLiteHelper;
+import de.knufficast.util.Callback;
+import de.knufficast.util.Function;
 
 /**
- * An adapter for displaying {@link DBFeed}s in a ListView.
+ * An adapter for displaying {@link DBFeed}s in a ListView. Renders from
+ * snapshots that are read in the background.
  * 
  * @author crazywater
  * 
@@ -41,6 +50,8 @@ public class FeedsAdapter extends ArrayAdapter<DBFeed> {
   private final int layoutResourceId;
   private final List<DBFeed> data;
   private final ImageCache imageCache;
+  // snapshots of the shown feeds, by ID
+  private Map<Long, Row> rows = Collections.emptyMap();
 
   public FeedsAdapter(Context context, int layoutResourceId, List<DBFeed> data) {
     super(context, layoutResourceId, data);
@@ -51,6 +62,28 @@ public class FeedsAdapter extends ArrayAdapter<DBFeed> {
     this.imageCache = App.get().getImageCache();
   }
 
+  /**
+   * Tells the list about the changed data right away, and again once fresh
+   * snapshots have been read.
+   */
+  @Override
+  public void notifyDataSetChanged() {
+    final List<DBFeed> feeds = new ArrayList<DBFeed>(data);
+    App.get().getDB().readAsync(new Function<Database, Map<Long, Row>>() {
+      @Override
+      public Map<Long, Row> call(Database db) {
+        return DBFeed.snapshot(db, feeds);
+      }
+    }, new Callback<Map<Long, Row>>() {
+      @Override
+      public void call(Map<Long, Row> snapshot) {
+        rows = snapshot;
+        FeedsAdapter.super.notifyDataSetChanged();
+      }
+    });
+    super.notifyDataSetChanged();
+  }
+
   @Override
   public View getView(int position, View convertView, ViewGroup parent) {
     View row = convertView;
@@ -62,12 +95,19 @@ public class FeedsAdapter extends ArrayAdapter<DBFeed> {
 
     row.setClickable(false);
 
-    final DBFeed feed = data.get(position);
+    Row feed = rows.get(data.get(position).getId());
 
     TextView textView = (TextView) row.findViewById(R.id.feed_list_title);
-    textView.setText(feed.getTitle());
     ImageView imageView = (ImageView) row.findViewById(R.id.feed_list_icon);
-    imageView.setImageDrawable(imageCache.getResource(feed.getImgUrl()));
+    if (feed == null) {
+      // not read yet, filled in when the snapshot arrives
+      textView.setText("");
+      imageView.setImageDrawable(imageCache.getDefaultIcon());
+      return row;
+    }
+    textView.setText(feed.getString(SQLiteHelper.C_FD_TITLE));
+    imageView.setImageDrawable(imageCache.getResource(feed
+        .getString(SQLiteHelper.C_FD_IMG_URL)));
     return row;
   }
 }
@@ -29,10 +29,14 @@ import android.widget.TextView;
 import de.knufficast.App;
 import de.knufficast.R;
 import de.knufficast.events.EventBus;
+import de.knufficast.events.FeedRemovedEvent;
 import de.knufficast.events.Listener;
 import de.knufficast.events.NewImageEvent;
 import de.knufficast.logic.db.DBFeed;
+import de.knufficast.logic.db.Database;
 import de.knufficast.ui.BaseFragment;
+import de.knufficast.util.Callback;
+import de.knufficast.util.Function;
 
 /**
  * Fragment in the main window that displays the "feeds" tab.
@@ -55,6 +59,12 @@ public class FeedsFragment extends BaseFragment {
       feedsAdapter.notifyDataSetChanged();
     }
   };
+  private Listener<FeedRemovedEvent> feedRemovedListener = new Listener<FeedRemovedEvent>() {
+    @Override
+    public void onEvent(FeedRemovedEvent event) {
+      refreshFeeds();
+    }
+  };
 
   @Override
   public int getLayoutId() {
@@ -99,12 +109,14 @@ public class FeedsFragment extends BaseFragment {
     });
 
     eventBus.addListener(NewImageEvent.class, newImageListener);
+    eventBus.addListener(FeedRemovedEvent.class, feedRemovedListener);
   }
 
   @Override
   public void onStop() {
     super.onStop();
     eventBus.removeListener(NewImageEvent.class, newImageListener);
+    eventBus.removeListener(FeedRemovedEvent.class, feedRemovedListener);
   }
 
   @Override
@@ -120,13 +132,23 @@ public class FeedsFragment extends BaseFragment {
   }
 
   /**
-   * Refreshes the displayed feeds.
+   * Refreshes the displayed feeds. The feeds are read in the background.
    */
   public void refreshFeeds() {
-    feeds.clear();
-    feeds.addAll(App.get().getConfiguration().getAllFeeds());
-    noFeeds.setVisibility(feeds.isEmpty() ? View.VISIBLE : View.GONE);
-    feedsAdapter.notifyDataSetChanged();
+    App.get().getDB().readAsync(new Function<Database, List<DBFeed>>() {
+      @Override
+      public List<DBFeed> call(Database db) {
+        return App.get().getConfiguration().getAllFeeds();
+      }
+    }, new Callback<List<DBFeed>>() {
+      @Override
+      public void call(List<DBFeed> allFeeds) {
+        feeds.clear();
+        feeds.addAll(allFeeds);
+        noFeeds.setVisibility(feeds.isEmpty() ? View.VISIBLE : View.GONE);
+        feedsAdapter.notifyDataSetChanged();
+      }
+    });
   }
 
   public interface Presenter {
@@ -15,7 +15,12 @@
  ******************************************************************************/
 package de.knufficast.ui.main;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import android.app.Activity;
 import android.content.Context;
@@ -34,12 +39,19 @@ import de.knufficast.App;
 import de.knufficast.R;
 import de.knufficast.logic.ImageCache;
 import de.knufficast.logic.db.DBEpisode;
-import de.knufficast.logic.db.DBFeed;
 import de.knufficast.logic.db.DBEpisode.DownloadState;
+import de.knufficast.logic.db.DBFeed;
+import de.knufficast.logic.db.Database;
+import de.knufficast.logic.db.Row;
+import de.knufficast.logic.db.SQLiteHelper;
 import de.knufficast.ui.DnDListView;
+import de.knufficast.util.Callback;
+import de.knufficast.util.Function;
 
 /**
- * An adapter to display the {@link Queue} in a {@link DnDListView}.
+ * An adapter to display the {@link Queue} in a {@link DnDListView}. Renders
+ * from snapshots that are read in the background, so it never touches the
+ * database on the UI thread.
  * 
  * @author crazywater
  * 
@@ -51,6 +63,10 @@ public class QueueAdapter extends ArrayAdapter<DBEpisode> {
   private final Presenter presenter;
   private final ImageCache imageCache;
 
+  // snapshots of the episodes and their feeds, by ID
+  private Map<Long, Row> episodeRows = Collections.emptyMap();
+  private Map<Long, Row> feedRows = Collections.emptyMap();
+
   private final int normalTextColor;
   private final int secondaryTextColor;
 
@@ -68,6 +84,37 @@ public class QueueAdapter extends ArrayAdapter<DBEpisode> {
     secondaryTextColor = resolveAttr(android.R.attr.textColorTertiary);
   }
 
+  /**
+   * Tells the list about the changed queue right away, and again once fresh
+   * snapshots of the episodes have been read. Until then, episodes are shown
+   * from their old snapshots, or empty if they are new.
+   */
+  @Override
+  public void notifyDataSetChanged() {
+    final List<DBEpisode> episodes = new ArrayList<DBEpisode>(data);
+    App.get().getDB().readAsync(new Function<Database, Snapshot>() {
+      @Override
+      public Snapshot call(Database db) {
+        Snapshot snapshot = new Snapshot();
+        snapshot.episodes = DBEpisode.snapshot(db, episodes);
+        Set<DBFeed> feeds = new HashSet<DBFeed>();
+        for (Row row : snapshot.episodes.values()) {
+          feeds.add(DBFeed.get(row.getLong(SQLiteHelper.C_EP_FEED_ID)));
+        }
+        snapshot.feeds = DBFeed.snapshot(db, feeds);
+        return snapshot;
+      }
+    }, new Callback<Snapshot>() {
+      @Override
+      public void call(Snapshot snapshot) {
+        episodeRows = snapshot.episodes;
+        feedRows = snapshot.feeds;
+        QueueAdapter.super.notifyDataSetChanged();
+      }
+    });
+    super.notifyDataSetChanged();
+  }
+
   @Override
   public View getView(final int position, View convertView, ViewGroup parent) {
     View row = convertView;
@@ -77,8 +124,6 @@ public class QueueAdapter extends ArrayAdapter<DBEpisode> {
       row = inflater.inflate(layoutResourceId, parent, false);
     }
 
-    final DBEpisode episode = data.get(position);
-
     row.setOnTouchListener(new OnTouchListener() {
       @Override
       public boolean onTouch(View v, MotionEvent event) {
@@ -88,30 +133,43 @@ public class QueueAdapter extends ArrayAdapter<DBEpisode> {
 
     TextView episodeTitle = (TextView) row
         .findViewById(R.id.queue_episode_list_episode_title);
-    episodeTitle.setText(episode.getTitle());
-    int textColor = episode.getDownloadState() == DownloadState.FINISHED ? normalTextColor
+    TextView feedTitle = (TextView) row
+        .findViewById(R.id.queue_episode_list_feed_title);
+    Row episode = episodeRows.get(data.get(position).getId());
+    if (episode == null) {
+      // not read yet, filled in when the snapshot arrives
+      episodeTitle.setText("");
+      feedTitle.setText("");
+      return row;
+    }
+    Row feed = feedRows.get(episode.getLong(SQLiteHelper.C_EP_FEED_ID));
+
+    DownloadState downloadState = DBEpisode.getDownloadState(episode);
+    episodeTitle.setText(episode.getString(SQLiteHelper.C_EP_TITLE));
+    int textColor = downloadState == DownloadState.FINISHED ? normalTextColor
         : secondaryTextColor;
     episodeTitle.setTextColor(textColor);
 
-    DBFeed feed = episode.getFeed();
-    TextView feedTitle = (TextView) row
-        .findViewById(R.id.queue_episode_list_feed_title);
-    feedTitle.setText(feed.getTitle());
+    feedTitle.setText(feed.getString(SQLiteHelper.C_FD_TITLE));
 
     ImageView imageView = (ImageView) row
         .findViewById(R.id.queue_episode_list_icon);
-    Drawable episodeIcon = imageCache.getResource(episode.getImgUrl());
+    Drawable episodeIcon = imageCache.getResource(episode
+        .getString(SQLiteHelper.C_EP_IMG_URL));
     if (episodeIcon == imageCache.getDefaultIcon()) {
-      episodeIcon = imageCache.getResource(feed.getImgUrl());
+      episodeIcon = imageCache.getResource(feed
+          .getString(SQLiteHelper.C_FD_IMG_URL));
     }
     imageView.setImageDrawable(episodeIcon);
 
     ProgressBar progressBar = (ProgressBar) row
         .findViewById(R.id.queue_episode_list_progress_bar);
-    if (episode.getDownloadState() != DownloadState.FINISHED) {
+    if (downloadState != DownloadState.FINISHED) {
       progressBar.setVisibility(View.VISIBLE);
-      progressBar.setMax((int) episode.getTotalBytes());
-      progressBar.setProgress((int) episode.getDownloadedBytes());
+      progressBar.setMax((int) episode
+          .getLong(SQLiteHelper.C_EP_TOTAL_BYTES));
+      progressBar.setProgress((int) episode
+          .getLong(SQLiteHelper.C_EP_DOWNLOADED_BYTES));
     } else {
       progressBar.setVisibility(View.GONE);
     }
@@ -127,6 +185,14 @@ public class QueueAdapter extends ArrayAdapter<DBEpisode> {
     return context.getResources().getColor(value.resourceId);
   }
 
+  /**
+   * What {@link #getView} renders from.
+   */
+  private static class Snapshot {
+    Map<Long, Row> episodes;
+    Map<Long, Row> feeds;
+  }
+
   /**
    * Presenter interface for this adapter.
    * 
@@ -38,7 +38,6 @@ import de.knufficast.events.PlayerProgressEvent;
 import de.knufficast.events.PlayerStateChangeEvent;
 import de.knufficast.events.QueueChangedEvent;
 import de.knufficast.logic.db.DBEpisode;
-import de.knufficast.logic.db.Queue;
 import de.knufficast.player.QueuePlayer;
 import de.knufficast.ui.BaseFragment;
 import de.knufficast.ui.DnDListView;
@@ -293,9 +292,8 @@ public class QueueFragment extends BaseFragment implements
    * Re-renders the episodes in the queue.
    */
   private void updateQueue() {
-    Queue queue = App.get().getQueue();
     ourQueue.clear();
-    ourQueue.addAll(queue.asList());
+    ourQueue.addAll(App.get().getQueue().asList());
     redrawQueue();
   }
 
@@ -0,0 +1,43 @@
+/*******************************************************************************
+ * Copyright 2012 Crazywater
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package de.knufficast.util;
+
+/**
+ * Hash functions whose results are stable across runs and devices, so they can
+ * be stored.
+ * 
+ * @author crazywater
+ * 
+ */
+public class HashUtil {
+  private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME = 0x100000001b3L;
+
+  /**
+   * The 64 bit FNV-1a hash of the UTF-16 code units of the string.
+   */
+  public static long fnv1a64(String s) {
+    long hash = FNV_OFFSET_BASIS;
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      hash ^= c & 0xff;
+      hash *= FNV_PRIME;
+      hash ^= c >>> 8;
+      hash *= FNV_PRIME;
+    }
+    return hash;
+  }
+}
@@ -0,0 +1,147 @@
+/*******************************************************************************
+ * Copyright 2012 Crazywater
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package de.knufficast.util;
+
+import java.util.Arrays;
+
+/**
+ * A hash map from long to int that doesn't box its keys or values and doesn't
+ * allocate on lookups. Uses open addressing with linear probing. Not
+ * thread-safe.
+ * 
+ * @author crazywater
+ * 
+ */
+public class LongIntMap {
+  private static final float MAX_LOAD = 0.6f;
+
+  private final int missing;
+  private long[] keys;
+  private int[] values;
+  private boolean[] used;
+  private int size = 0;
+
+  /**
+   * @param missing
+   *          the value that {@link #get} returns for keys that aren't in the
+   *          map
+   */
+  public LongIntMap(int missing) {
+    this.missing = missing;
+    allocate(16);
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Returns the value for the key, or the missing value.
+   */
+  public int get(long key) {
+    int i = find(key);
+    return used[i] ? values[i] : missing;
+  }
+
+  public void put(long key, int value) {
+    int i = find(key);
+    if (!used[i]) {
+      if (size + 1 > keys.length * MAX_LOAD) {
+        rehash(keys.length * 2);
+        i = find(key);
+      }
+      used[i] = true;
+      keys[i] = key;
+      size++;
+    }
+    values[i] = value;
+  }
+
+  /**
+   * Removes the key.
+   * 
+   * @return the value it had, or the missing value
+   */
+  public int remove(long key) {
+    int i = find(key);
+    if (!used[i]) {
+      return missing;
+    }
+    int result = values[i];
+    used[i] = false;
+    size--;
+    // shift back following entries of the probe sequence into the hole
+    int mask = keys.length - 1;
+    int hole = i;
+    int j = (i + 1) & mask;
+    while (used[j]) {
+      int home = slot(keys[j]);
+      // move j into the hole unless its home lies cyclically in (hole, j]
+      boolean stays = hole <= j ? (hole < home && home <= j)
+          : (hole < home || home <= j);
+      if (!stays) {
+        keys[hole] = keys[j];
+        values[hole] = values[j];
+        used[hole] = true;
+        used[j] = false;
+        hole = j;
+      }
+      j = (j + 1) & mask;
+    }
+    return result;
+  }
+
+  public void clear() {
+    Arrays.fill(used, false);
+    size = 0;
+  }
+
+  /**
+   * Returns the index where the key is, or the free index where it would go.
+   */
+  private int find(long key) {
+    int mask = keys.length - 1;
+    int i = slot(key);
+    while (used[i] && keys[i] != key) {
+      i = (i + 1) & mask;
+    }
+    return i;
+  }
+
+  private int slot(long key) {
+    long h = key * 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32)) & (keys.length - 1);
+  }
+
+  private void rehash(int capacity) {
+    long[] oldKeys = keys;
+    int[] oldValues = values;
+    boolean[] oldUsed = used;
+    allocate(capacity);
+    size = 0;
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldUsed[i]) {
+        put(oldKeys[i], oldValues[i]);
+      }
+    }
+  }
+
+  private void allocate(int capacity) {
+    keys = new long[capacity];
+    values = new int[capacity];
+    used = new boolean[capacity];
+  }
+}
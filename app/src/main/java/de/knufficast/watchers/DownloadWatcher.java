@@ -50,7 +50,7 @@ public class DownloadWatcher {
     public void onEvent(EpisodeDownloadStateEvent event) {
       Configuration config = App.get().getConfiguration();
       if (config.autoRetry()) {
-        DBEpisode ep = new DBEpisode(event.getIdentifier());
+        DBEpisode ep = DBEpisode.get(event.getIdentifier());
         if (ep.getDownloadState() == DownloadState.ERROR && netUtil.isOnline()) {
           queueDownloader.restartDownloads();
         }
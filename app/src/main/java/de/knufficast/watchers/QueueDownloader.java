@@ -112,11 +112,19 @@ public class QueueDownloader {
     }
   }
 
-  public void deleteDownload(DBEpisode episode) {
-    if (downloadTasks.containsKey(episode)) {
-      downloadTasks.get(episode).cancel(true);
-      downloadTasks.remove(episode);
+  /**
+   * Stops the download of the episode, if it is running, without touching the
+   * file or the download state.
+   */
+  public void cancelDownload(DBEpisode episode) {
+    DownloadTask task = downloadTasks.remove(episode);
+    if (task != null) {
+      task.cancel(true);
     }
+  }
+
+  public void deleteDownload(DBEpisode episode) {
+    cancelDownload(episode);
     File file = new ExternalFileUtil(context).resolveFile(episode
         .getFileLocation());
     if (file.exists()) {
@@ -18,6 +18,7 @@ package de.knufficast.watchers;
 import java.io.IOException;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -35,8 +36,8 @@ import de.knufficast.logic.FeedDownloader;
 import de.knufficast.logic.db.Configuration;
 import de.knufficast.logic.db.DBEpisode;
 import de.knufficast.logic.db.DBFeed;
+import de.knufficast.logic.db.EpisodeRetention;
 import de.knufficast.logic.db.XMLToDBWriter;
-import de.knufficast.logic.xml.XMLFeed;
 import de.knufficast.util.BooleanCallback;
 import de.knufficast.util.NetUtil;
 
@@ -71,39 +72,50 @@ public class UpdaterService extends IntentService {
   public boolean refreshAll() {
     HttpURLConnection.setFollowRedirects(true);
     if (!refreshing.getAndSet(true)) {
-      Configuration config = App.get().getConfiguration();
-      List<DBFeed> allFeeds = config.getAllFeeds();
-      boolean refreshSuccessful = true;
-      // refresh feeds
-      for (DBFeed feed : allFeeds) {
-        Log.d("UpdaterService", "Refreshing Feed " + feed.getFeedUrl());
-        try {
-          refresh(config, feed);
-          if (callback != null) {
-            callback.success(feed);
-          }
-        } catch (Exception e) {
-          e.printStackTrace();
-          refreshSuccessful = false;
-          if (callback != null) {
-            callback.fail(feed);
+      try {
+        Configuration config = App.get().getConfiguration();
+        List<DBFeed> allFeeds = config.getAllFeeds();
+        boolean refreshSuccessful = true;
+        List<Long> newEpisodeIds = new ArrayList<Long>();
+        // refresh feeds
+        for (DBFeed feed : allFeeds) {
+          Log.d("UpdaterService", "Refreshing Feed " + feed.getFeedUrl());
+          try {
+            for (long id : refresh(config, feed)) {
+              newEpisodeIds.add(id);
+            }
+            if (callback != null) {
+              callback.success(feed);
+            }
+          } catch (Exception e) {
+            e.printStackTrace();
+            refreshSuccessful = false;
+            if (callback != null) {
+              callback.fail(feed);
+            }
           }
         }
-      }
-      // auto-enqueue all new episodes
-      if (App.get().getConfiguration().autoEnqueue()) {
-        for (DBFeed feed : allFeeds) {
-          for (DBEpisode episode : feed.getEpisodes()) {
-            if (episode.isNew() && episode.hasDownload()) {
+        // auto-enqueue the episodes that this refresh has added
+        if (App.get().getConfiguration().autoEnqueue()) {
+          for (long id : newEpisodeIds) {
+            DBEpisode episode = DBEpisode.get(id);
+            if (episode.hasDownload()) {
               App.get().getQueue().add(episode);
               episode.setNew(false);
             }
           }
         }
+        App.get().save();
+        try {
+          new EpisodeRetention().apply(allFeeds);
+        } catch (IllegalStateException e) {
+          // the database couldn't flush, try again with the next refresh
+          Log.e("UpdaterService", "Old episodes not deleted", e);
+        }
+        return refreshSuccessful;
+      } finally {
+        refreshing.set(false);
       }
-      App.get().save();
-      refreshing.set(false);
-      return refreshSuccessful;
     }
     return false;
   }
@@ -117,8 +129,13 @@ public class UpdaterService extends IntentService {
     QueueDownloader.get().cancelDownloads();
   }
 
-  private void refresh(Configuration config, DBFeed feed) throws IOException,
-  XmlPullParserException {
+  /**
+   * Refreshes a feed if it has changed on the server.
+   * 
+   * @return the IDs of the new episodes
+   */
+  private long[] refresh(Configuration config, DBFeed feed)
+      throws IOException, XmlPullParserException {
     boolean needsUpdate = true;
     HttpURLConnection conn = (HttpURLConnection) new URL(feed.getFeedUrl())
     .openConnection();
@@ -138,9 +155,11 @@ public class UpdaterService extends IntentService {
       needsUpdate = false;
     }
     if (needsUpdate) {
-      List<XMLFeed> feeds = new FeedDownloader().getFeeds(conn);
-      new XMLToDBWriter().mergeFeeds(feeds);
+      XMLToDBWriter writer = new XMLToDBWriter(true);
+      new FeedDownloader().getFeeds(conn, writer);
+      return writer.finish();
     }
+    return new long[0];
   }
 
   @Override
@@ -170,6 +189,12 @@ public class UpdaterService extends IntentService {
     if (!netUtil.isOnWifi() && config.downloadNeedsWifi()) {
       cancelDownloads();
     }
+    // the process might be gone soon after the service is done
+    try {
+      App.get().getDB().flush();
+    } catch (IllegalStateException e) {
+      Log.e("UpdaterService", "Changes not flushed", e);
+    }
   }
 
   public static void init() {